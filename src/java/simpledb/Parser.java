@@ -281,9 +281,22 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, -1, tId);
+    }
+
+    /**
+     * Like {@link #handleQueryStatement(ZQuery, TransactionId)}, for a query
+     * that had a trailing LIMIT cut off by {@link #striplimit}.
+     * @param limit the LIMIT of the query, or -1 if it has none
+     */
+    public Query handleQueryStatement(ZQuery s, int limit, TransactionId tId)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.addLimit(limit);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -465,12 +478,16 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        Statement st = striplimit(s);
+        ByteArrayInputStream bis = new ByteArrayInputStream(st.sql.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (st.limit >= 0)
+                    lp.addLimit(st.limit);
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -481,6 +498,51 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    // Zql does not know LIMIT, so a trailing "LIMIT n" is cut off the
+    // statement before parsing and handed on next to it
+    private static final java.util.regex.Pattern LIMIT = java.util.regex.Pattern
+            .compile("(?is)^(.*?)\\s+LIMIT\\s+(\\d+)\\s*(;?)\\s*$");
+
+    /** A statement for Zql together with the LIMIT cut off it. */
+    static class Statement {
+        final String sql;
+        /** the LIMIT of the statement, or -1 if it has none */
+        final int limit;
+
+        Statement(String sql, int limit) {
+            this.sql = sql;
+            this.limit = limit;
+        }
+    }
+
+    //去掉语句末尾的LIMIT n并把n和语句一起返回，没有LIMIT时limit为-1
+    static Statement striplimit(String s) throws simpledb.ParsingException {
+        java.util.regex.Matcher m = LIMIT.matcher(s);
+        if (!m.matches())
+            return new Statement(s, -1);
+        try {
+            return new Statement(m.group(1) + m.group(3), Integer.parseInt(m.group(2)));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT " + m.group(2) + " is too large.");
+        }
+    }
+
+    //只读到第一条语句末尾的';'（引号里的不算），Zql每次也只解析一条语句
+    static String readstatement(InputStream is) throws IOException {
+        Reader r = new InputStreamReader(is, StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        int c;
+        while ((c = r.read()) >= 0) {
+            sb.append((char) c);
+            if (c == '\'')
+                quoted = !quoted;
+            else if (c == ';' && !quoted)
+                break;
+        }
+        return sb.toString();
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -495,7 +557,8 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            Statement stmt = striplimit(readstatement(is));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(stmt.sql.getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -516,7 +579,7 @@ public class Parser {
                         query = handleDeleteStatement((ZDelete) s,
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
-                        query = handleQueryStatement((ZQuery) s,
+                        query = handleQueryStatement((ZQuery) s, stmt.limit,
                                 curtrans.getId());
                     else {
                         System.out
@@ -567,7 +630,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "order by", "limit" };
 
     public static void main(String[] argv) throws IOException {
 
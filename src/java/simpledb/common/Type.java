@@ -4,6 +4,7 @@ import simpledb.storage.StringField;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.io.*;
 
@@ -28,6 +29,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -46,6 +52,16 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = buf.getInt(offset);
+            byte[] bs = new byte[strLen];
+            ByteBuffer src = buf.duplicate();
+            src.position(offset + 4);
+            src.get(bs);
+            return new StringField(new String(bs), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -64,4 +80,13 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from buf at the given absolute offset, in the same format as
+   *   {@link #parse(DataInputStream)}. The position of buf is not changed.
+   * @param buf the buffer to read from
+   * @param offset the offset of the field in buf
+   */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
 }
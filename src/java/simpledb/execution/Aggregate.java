@@ -1,12 +1,27 @@
 package simpledb.execution;
 
+import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
 import simpledb.common.Type;
+import simpledb.index.BTreeFile;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 
 /**
@@ -26,6 +41,24 @@ public class Aggregate extends Operator {
     private Aggregator aggregator ;
     private OpIterator resultIterator;
 
+    /**
+     * The number of threads in the pool that all parallel Aggregates share,
+     * and so the most useful argument to {@link #setParallelism}.
+     */
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    //所有并行聚合共用一个线程池，不在每次open时新建
+    private static final ForkJoinPool POOL = new ForkJoinPool(DEFAULT_PARALLELISM);
+    //每个线程平均分到的页范围数，多分几份以便忙闲不均时互相窃取任务
+    private static final int RANGES_PER_THREAD = 4;
+    private int parallelism = 1;
+    private long memoryBudget = SpilledGroups.DEFAULT_MEMORY_BUDGET;
+    //上次open时建立的部分聚合数，串行时为0
+    private int partials;
+    //child按分组字段有序时逐组输出，不建哈希表
+    private boolean streaming;
+    //流式聚合时已经读出、属于下一组的元组
+    private transient Tuple lookahead;
+
 
     /**
      * Constructor.
@@ -105,11 +138,119 @@ public class Aggregate extends Operator {
         return aop.toString();
     }
 
+    /**
+     * Set how many threads open() may use. With more than one thread, if the
+     * child is a scan of a HeapFile, possibly under Filters, the pages of the
+     * file are split into ranges that are aggregated on a ForkJoinPool, each
+     * into its own partial aggregate, and the partial aggregates are merged
+     * at the end. Otherwise the child is read by the calling thread.
+     * Takes effect on the next open(). The ranges run on a pool of
+     * {@link #DEFAULT_PARALLELISM} threads shared by all Aggregates. The
+     * calling thread takes the read locks on all the pages first, waiting
+     * for writers if it has to, so the worker threads never wait for a lock.
+     */
+    public void setParallelism(int threads) {
+        this.parallelism = Math.max(1, threads);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** @return how many partial aggregates the last open() merged, or 0 if it did not run in parallel */
+    public int getPartialAggregates() {
+        return partials;
+    }
+
+    /**
+     * Set how many bytes of group state the aggregate may keep in memory;
+     * groups beyond it are spilled to disk (see
+     * {@link Aggregator#setMemoryBudget}). When aggregating in parallel the
+     * budget is shared by the threads. Takes effect on the next open().
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /** @return how many partitions of groups the last open() spilled to disk so far */
+    public int getSpilledPartitions() {
+        return aggregator == null ? 0 : aggregator.getSpilledPartitions();
+    }
+
+    /**
+     * Set whether the child returns the tuples of each group together, for
+     * example because it is sorted on the group by field. If so, and there
+     * is a group by field, each group is aggregated and returned as soon as
+     * the next group starts, holding only one group in memory, instead of
+     * aggregating the whole child before returning anything. Takes effect on
+     * the next open().
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @return true if the given plan is known to return tuples with equal
+     *         values of the given field together: an {@link OrderBy} on the
+     *         field, or a scan, possibly filtered, of a B+ tree keyed on it
+     */
+    public static boolean isGroupedOn(OpIterator plan, int field) {
+        if (plan instanceof OrderBy)
+            return ((OrderBy) plan).getOrderByField() == field;
+        if (plan instanceof TopN)
+            return ((TopN) plan).getOrderByField() == field;
+        SeqScan scan = IndexNestedLoopJoin.scanOf(plan);
+        if (scan == null)
+            return false;
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        return file instanceof BTreeFile && ((BTreeFile) file).keyField() == field;
+    }
+
     public void open() throws NoSuchElementException, DbException,
             TransactionAbortedException {
         // some code goes here
         super.open();
         child[0].open();
+        lookahead = null;
+        if(streaming && gfield >= 0)
+        {
+            //逐组聚合，在fetchNext中读child
+            partials = 0;
+            aggregator = null;
+            resultIterator = null;
+            return;
+        }
+        SeqScan scan = IndexNestedLoopJoin.scanOf(child[0]);
+        DbFile file = scan == null ? null : Database.getCatalog().getDatabaseFile(scan.getTableId());
+        try {
+            if(parallelism > 1 && file instanceof HeapFile)
+            {
+                aggregator = parallelaggregate(scan, (HeapFile) file);
+            }
+            else
+            {
+                partials = 0;
+                aggregator = newaggregator(memoryBudget);
+                while (child[0].hasNext())
+                {
+                    Tuple tuple = child[0].next();
+                    aggregator.mergeTupleIntoGroup(tuple);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw new DbException("failed to spill aggregate groups", e.getCause());
+        }
+        resultIterator = aggregator.iterator();
+        resultIterator.open();
+    }
+
+    //根据聚合字段和分组字段的类型建立一个空的聚合器
+    private Aggregator newaggregator(long budget) {
+        Aggregator aggregator;
         if(gfield >= 0)
         {
             if(child[0].getTupleDesc().getFieldType(gfield) == Type.INT_TYPE)
@@ -132,16 +273,101 @@ public class Aggregate extends Operator {
                 aggregator = new StringAggregator(gfield,null,afield,aop);
             }
         }
+        aggregator.setMemoryBudget(budget);
+        return aggregator;
+    }
 
+    //把文件按页范围分给ForkJoinPool中的线程，各自聚合后两两合并
+    private Aggregator parallelaggregate(SeqScan scan, HeapFile file)
+            throws DbException, TransactionAbortedException {
+        List<Predicate> filters = new ArrayList<>();
+        for (OpIterator it = child[0]; it instanceof Filter; it = ((Filter) it).getChildren()[0])
+            filters.add(((Filter) it).getPredicate());
+        int pages = file.numPages();
+        //先在当前线程把所有页的读锁都拿到：锁表里一个事务同时只能在一个页上等待，
+        //工作线程用的是同一个事务，拿着锁再分出去它们就不会等锁
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < pages; i++)
+            bp.getCachedPage(scan.getTransactionId(), new HeapPageId(file.getId(), i), Permissions.READ_ONLY);
+        int grain = Math.max(1, (pages + parallelism * RANGES_PER_THREAD - 1) / (parallelism * RANGES_PER_THREAD));
+        try {
+            PartialAggregate task = new PartialAggregate(scan, file, filters, 0, pages, grain);
+            partials = 0;
+            Aggregator result = POOL.invoke(task);
+            partials = task.partials;
+            return result;
+        } catch (CompletionException e) {
+            //在别的线程抛出的异常可能又被包了一层，找到原来的异常再抛出
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if(cause instanceof DbException)
+                {
+                    throw (DbException) cause;
+                }
+                if(cause instanceof TransactionAbortedException)
+                {
+                    throw (TransactionAbortedException) cause;
+                }
+            }
+            throw e;
+        }
+    }
 
+    //聚合页范围[from, to)内的元组；范围大于grain时一分为二，两半的部分聚合结果合并后返回
+    private class PartialAggregate extends RecursiveTask<Aggregator> {
+        private static final long serialVersionUID = 1L;
+        private final SeqScan scan;
+        private final HeapFile file;
+        private final List<Predicate> filters;
+        private final int from, to, grain;
+        //这个范围内建立的部分聚合数
+        int partials;
 
-        while (child[0].hasNext())
-        {
-            Tuple tuple = child[0].next();
-            aggregator.mergeTupleIntoGroup(tuple);
+        PartialAggregate(SeqScan scan, HeapFile file, List<Predicate> filters, int from, int to, int grain) {
+            this.scan = scan;
+            this.file = file;
+            this.filters = filters;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected Aggregator compute() {
+            if (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                PartialAggregate left = new PartialAggregate(scan, file, filters, from, mid, grain);
+                PartialAggregate right = new PartialAggregate(scan, file, filters, mid, to, grain);
+                left.fork();
+                Aggregator result = right.compute();
+                result.merge(left.join());
+                partials = left.partials + right.partials;
+                return result;
+            }
+            Aggregator partial = newaggregator(memoryBudget / parallelism);
+            DbFileIterator it = file.iterator(scan.getTransactionId(), from, to);
+            try {
+                it.open();
+                while (it.hasNext()) {
+                    Tuple tuple = it.next();
+                    if (passes(tuple))
+                        partial.mergeTupleIntoGroup(tuple);
+                }
+            } catch (DbException | TransactionAbortedException e) {
+                throw new CompletionException(e);
+            } finally {
+                it.close();
+            }
+            partials = 1;
+            return partial;
+        }
+
+        private boolean passes(Tuple tuple) {
+            for (Predicate p : filters) {
+                if (!p.filter(tuple))
+                    return false;
+            }
+            return true;
         }
-        resultIterator = aggregator.iterator();
-        resultIterator.open();
     }
 
     /**
@@ -160,6 +386,10 @@ public class Aggregate extends Operator {
 //            Tuple newtuples = aggregator.iterator().next();
 //            return newtuples;
 //        }
+        if(resultIterator == null)
+        {
+            return nextgroup();
+        }
         if(resultIterator.hasNext())
         {
             Tuple tuple = resultIterator.next();
@@ -168,9 +398,41 @@ public class Aggregate extends Operator {
         return null;
     }
 
+    //流式聚合：读到分组字段变化为止，返回这一组的结果
+    private Tuple nextgroup() throws TransactionAbortedException, DbException {
+        if(lookahead == null)
+        {
+            if(!child[0].hasNext())
+            {
+                return null;
+            }
+            lookahead = child[0].next();
+        }
+        Field key = lookahead.getField(gfield);
+        Aggregator group = newaggregator(memoryBudget);
+        group.mergeTupleIntoGroup(lookahead);
+        lookahead = null;
+        while (child[0].hasNext())
+        {
+            Tuple tuple = child[0].next();
+            if(!key.equals(tuple.getField(gfield)))
+            {
+                lookahead = tuple;
+                break;
+            }
+            group.mergeTupleIntoGroup(tuple);
+        }
+        OpIterator it = group.iterator();
+        it.open();
+        Tuple result = it.next();
+        it.close();
+        return result;
+    }
+
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child[0].rewind();
+        lookahead = null;
     }
 
     /**
@@ -193,6 +455,11 @@ public class Aggregate extends Operator {
         // some code goes here
         super.close();
         child[0].close();
+        //删除聚合器写出的分区
+        if(resultIterator != null)
+        {
+            resultIterator.close();
+        }
     }
 
     @Override
@@ -79,6 +79,31 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the groups of another aggregator, built with the same arguments
+     * over a disjoint part of the input, into this one. Used to combine the
+     * partial aggregates of a parallel aggregation.
+     *
+     * @param other the partial aggregate to merge; it must not be used
+     *              afterwards
+     */
+    void merge(Aggregator other);
+
+    /**
+     * Set how many bytes of group state the aggregator may keep in memory.
+     * Groups first seen after the budget is full are partitioned by the hash
+     * of the group value into temporary files, and each partition is
+     * aggregated in turn by the iterator. Must be called before the first
+     * tuple is merged.
+     */
+    void setMemoryBudget(long bytes);
+
+    /**
+     * @return how many partitions of groups have been written to temporary
+     * files, including partitions that were split again when read back
+     */
+    int getSpilledPartitions();
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
@@ -0,0 +1,204 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Sorts tuples within a bounded amount of memory. Tuples are buffered until
+ * the memory budget is used up; the buffer is then sorted and written to a
+ * {@link SpillFile} as a sorted run. Reading the result merges the runs and
+ * the tuples still in memory with a k-way merge, so the whole input is never
+ * held in memory at once. The sort is stable.
+ * <p>
+ * The memory budget is counted in tuple bytes as given by
+ * {@link TupleDesc#getSize()}, not in Java heap bytes.
+ */
+public class ExternalSort {
+
+    /** Default memory budget in tuple bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L << 20;
+    /** Most runs merged at once; more runs are first merged into longer runs. */
+    static final int MAX_FANIN = 64;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final long memoryBudget;
+    private final int tupleSize;
+    //内存中还没有写出的元组
+    private final List<Tuple> buffer = new ArrayList<>();
+    //已经写出的有序段，按写出的先后排列
+    private final List<SpillFile> runs = new ArrayList<>();
+    private long spilledBytes;
+    private int runCount;
+    private boolean sorted;
+
+    /**
+     * @param td the schema of the tuples to sort
+     * @param comparator the sort order
+     * @param memoryBudget how many tuple bytes may be buffered before a run
+     *            is written to disk
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, long memoryBudget) {
+        this.td = td;
+        this.comparator = comparator;
+        this.memoryBudget = memoryBudget;
+        this.tupleSize = Math.max(1, td.getSize());
+    }
+
+    /**
+     * Adds a tuple to the input. Must not be called after {@link #iterator()}.
+     */
+    public void add(Tuple t) throws DbException {
+        buffer.add(t);
+        if ((long) buffer.size() * tupleSize >= memoryBudget) {
+            spill();
+        }
+    }
+
+    //把内存中的元组排序后写成一个有序段
+    private void spill() throws DbException {
+        buffer.sort(comparator);
+        try {
+            SpillFile run = new SpillFile(td);
+            for (Tuple t : buffer) {
+                run.write(t);
+            }
+            spilledBytes += run.bytes();
+            runs.add(run);
+            runCount++;
+        } catch (IOException e) {
+            throw new DbException("failed to write sorted run", e);
+        }
+        buffer.clear();
+        if (runs.size() > MAX_FANIN) {
+            mergeruns();
+        }
+    }
+
+    //段太多时，把最早的MAX_FANIN个段合并成一个段，合并后的段仍排在最前面以保持稳定
+    private void mergeruns() throws DbException {
+        List<SpillFile> first = new ArrayList<>(runs.subList(0, MAX_FANIN));
+        try {
+            SpillFile merged = new SpillFile(td);
+            Merge merge = new Merge(first, Collections.emptyList());
+            Tuple t;
+            while ((t = merge.next()) != null) {
+                merged.write(t);
+            }
+            merge.close();
+            spilledBytes += merged.bytes();
+            for (SpillFile run : first) {
+                run.delete();
+            }
+            runs.subList(0, MAX_FANIN).clear();
+            runs.add(0, merged);
+        } catch (IOException e) {
+            throw new DbException("failed to merge sorted runs", e);
+        }
+    }
+
+    /**
+     * Returns an iterator over all added tuples in sorted order. May be
+     * called again to read the result from the start.
+     */
+    public Merge iterator() throws DbException {
+        if (!sorted) {
+            buffer.sort(comparator);
+            sorted = true;
+        }
+        try {
+            return new Merge(runs, buffer);
+        } catch (IOException e) {
+            throw new DbException("failed to read sorted runs", e);
+        }
+    }
+
+    /** Deletes all runs and drops the buffered tuples. */
+    public void close() {
+        for (SpillFile run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        buffer.clear();
+        sorted = false;
+    }
+
+    /** @return bytes written to temporary files, including intermediate merges */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /** @return number of sorted runs written to disk */
+    public int getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * k-way merge of sorted runs and a sorted in-memory list. Ties are
+     * broken by source order so equal tuples keep their input order.
+     */
+    public class Merge {
+        private final List<SpillFile.Reader> readers = new ArrayList<>();
+        private final Iterator<Tuple> memory;
+        //堆中存放来源的下标，各来源当前的元组放在heads中
+        private final PriorityQueue<Integer> heap;
+        private final Tuple[] heads;
+
+        private Merge(List<SpillFile> runs, List<Tuple> memory) throws IOException {
+            for (SpillFile run : runs) {
+                readers.add(run.reader());
+            }
+            this.memory = memory.iterator();
+            heads = new Tuple[readers.size() + 1];
+            heap = new PriorityQueue<>(heads.length, (a, b) -> {
+                int c = comparator.compare(heads[a], heads[b]);
+                return c != 0 ? c : Integer.compare(a, b);
+            });
+            for (int i = 0; i < heads.length; i++) {
+                advance(i);
+            }
+        }
+
+        //读出第i个来源的下一个元组，放回堆中
+        private void advance(int i) throws IOException {
+            Tuple t;
+            if (i < readers.size()) {
+                t = readers.get(i).next();
+            } else {
+                t = memory.hasNext() ? memory.next() : null;
+            }
+            heads[i] = t;
+            if (t != null) {
+                heap.add(i);
+            }
+        }
+
+        /** @return the next tuple in sorted order, or null at the end */
+        public Tuple next() throws DbException {
+            Integer i = heap.poll();
+            if (i == null) {
+                return null;
+            }
+            Tuple t = heads[i];
+            try {
+                advance(i);
+            } catch (IOException e) {
+                throw new DbException("failed to read sorted run", e);
+            }
+            return t;
+        }
+
+        public void close() {
+            for (SpillFile.Reader reader : readers) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -5,10 +5,20 @@ import simpledb.common.DbException;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join. If child1 fits in the memory budget it
+ * is loaded into a hash table and child2 is streamed past it once. Otherwise
+ * both inputs are partitioned by the hash of the join field into temporary
+ * files; the first partition of child1 stays in memory and is joined while
+ * child2 is being partitioned, and every other pair of partitions is joined
+ * afterwards. Partitions that are still too big are partitioned again with
+ * a different hash, and those that cannot be split (one very frequent key)
+ * are joined in memory-sized chunks.
  */
 public class HashEquiJoin extends Operator {
 
@@ -55,44 +65,319 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
+    /** Default memory budget for the build side, in tuple bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L << 20;
+
     final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    //第一遍扫描时写出的分区；为空表示child1全部放得进内存
+    private SpillFile[] buildParts, probeParts;
+    //0号分区是否还留在内存里（hybrid hash join）
+    private boolean resident;
+    //是否还在扫描child2
+    private boolean probingChild;
+    //等待连接的分区和正在连接的分区
+    private final Deque<Partition> pending = new ArrayDeque<>();
+    private Partition current;
+    private SpillFile.Reader buildReader, probeReader;
+    private long spilledBytes;
+    private int spilledPartitions;
+    private int skewedPartitions;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+    /**
+     * Set how many tuple bytes of child1 may be held in the hash table. A
+     * bigger build side is partitioned by hash into temporary files together
+     * with child2, and each pair of partitions is joined on its own. Takes
+     * effect on the next open() or rewind().
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /** @return bytes written to temporary files by the last run of the join */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /** @return number of build partitions written to disk, including re-partitioning */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /**
+     * @return number of partitions that were still too big after re-partitioning,
+     *         usually because of one very frequent key, and were joined in chunks
+     */
+    public int getSkewedPartitions() {
+        return skewedPartitions;
+    }
+
+    //哈希表中最多能放的元组数
+    private long maxtuples() {
+        return Math.max(1, memoryBudget / Math.max(1, child1.getTupleDesc().getSize()));
+    }
+
+    //按连接字段分区
+    private static int partition(Object field, int depth) {
+        return SpillFile.partition(field, depth, SpillFile.PARTITIONS);
+    }
+
+    private static void put(Map<Object, List<Tuple>> map, Object key, Tuple t) {
+        map.computeIfAbsent(key, k -> new ArrayList<>()).add(t);
+    }
+
+    //读入child1：放得下就全放在内存里，放不下就按哈希分区写到磁盘，只把0号分区留在内存
+    private void build() throws DbException, TransactionAbortedException {
+        spilledBytes = 0;
+        spilledPartitions = 0;
+        skewedPartitions = 0;
+        resident = true;
+        long max = maxtuples();
+        long inmemory = 0;
+        TupleDesc td1 = child1.getTupleDesc(), td2 = child2.getTupleDesc();
+        try {
+            while (child1.hasNext()) {
+                Tuple t = child1.next();
+                Object key = t.getField(pred.getField1());
+                if (buildParts == null) {
+                    put(map, key, t);
+                    if (++inmemory <= max)
+                        continue;
+                    //超出预算：切换到分区模式，只把0号分区留在内存
+                    buildParts = new SpillFile[SpillFile.PARTITIONS];
+                    probeParts = new SpillFile[SpillFile.PARTITIONS];
+                    for (int i = 0; i < SpillFile.PARTITIONS; i++) {
+                        buildParts[i] = new SpillFile(td1);
+                        probeParts[i] = new SpillFile(td2);
+                    }
+                    inmemory = 0;
+                    Iterator<Map.Entry<Object, List<Tuple>>> it = map.entrySet().iterator();
+                    while (it.hasNext()) {
+                        Map.Entry<Object, List<Tuple>> e = it.next();
+                        int p = partition(e.getKey(), 0);
+                        if (p == 0) {
+                            inmemory += e.getValue().size();
+                            continue;
+                        }
+                        for (Tuple bt : e.getValue())
+                            buildParts[p].write(bt);
+                        it.remove();
+                    }
+                } else {
+                    int p = partition(key, 0);
+                    if (p != 0 || !resident) {
+                        buildParts[p].write(t);
+                        continue;
+                    }
+                    put(map, key, t);
+                    inmemory++;
+                }
+                if (inmemory > max) {
+                    //0号分区也放不下了，整个写出去
+                    for (List<Tuple> l : map.values())
+                        for (Tuple bt : l)
+                            buildParts[0].write(bt);
+                    map.clear();
+                    inmemory = 0;
+                    resident = false;
+                }
+            }
+            if (buildParts != null) {
+                for (int i = 0; i < SpillFile.PARTITIONS; i++) {
+                    if (buildParts[i].size() > 0)
+                        spilledPartitions++;
+                    spilledBytes += buildParts[i].bytes();
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("failed to partition join input", e);
         }
-        return cnt > 0;
+        //child1为空时不必扫描child2
+        probingChild = buildParts != null || !map.isEmpty();
+    }
 
+    //关闭并删除所有临时文件，清空哈希表
+    private void cleanup() {
+        closereaders();
+        if (current != null)
+            current.delete();
+        current = null;
+        for (Partition part : pending)
+            part.delete();
+        pending.clear();
+        if (buildParts != null) {
+            for (int i = 0; i < SpillFile.PARTITIONS; i++) {
+                buildParts[i].delete();
+                probeParts[i].delete();
+            }
+        }
+        buildParts = null;
+        probeParts = null;
+        map.clear();
+        listIt = null;
+    }
+
+    private void closereaders() {
+        try {
+            if (buildReader != null)
+                buildReader.close();
+            if (probeReader != null)
+                probeReader.close();
+        } catch (IOException ignored) {
+        }
+        buildReader = null;
+        probeReader = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        build();
         super.open();
     }
 
     public void close() {
         super.close();
+        cleanup();
         child2.close();
         child1.close();
         this.t1=null;
         this.t2=null;
-        this.listIt=null;
-        this.map.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        cleanup();
         child1.rewind();
         child2.rewind();
+        build();
+    }
+
+    //child2扫描完后，把两边都写到磁盘的分区对排进队列
+    private void queuepartitions() throws IOException {
+        for (int i = 0; i < SpillFile.PARTITIONS; i++) {
+            spilledBytes += probeParts[i].bytes();
+            if (i == 0 && resident) {
+                buildParts[i].delete();
+                probeParts[i].delete();
+            } else {
+                pending.add(new Partition(buildParts[i], probeParts[i], 0));
+            }
+        }
+        buildParts = null;
+        probeParts = null;
+    }
+
+    //取出下一个分区对并装入它的第一块build元组；没有分区了返回false
+    private boolean nextpartition() throws IOException {
+        closereaders();
+        if (current != null)
+            current.delete();
+        map.clear();
+        while ((current = pending.poll()) != null) {
+            Partition part = current;
+            if (part.build.size() == 0 || part.probe.size() == 0) {
+                part.delete();
+                continue;
+            }
+            if (part.build.size() > maxtuples()) {
+                if (part.depth < SpillFile.MAX_DEPTH && !part.skewed) {
+                    repartition(part);
+                    continue;
+                }
+                //再分区也分不开，只能分块连接：每块build元组扫描一遍probe分区
+                skewedPartitions++;
+            }
+            buildReader = part.build.reader();
+            loadchunk();
+            probeReader = part.probe.reader();
+            return true;
+        }
+        return false;
+    }
+
+    //把一个太大的分区对用下一层的哈希再分成PARTITIONS对
+    private void repartition(Partition part) throws IOException {
+        Partition[] subs = new Partition[SpillFile.PARTITIONS];
+        for (int i = 0; i < SpillFile.PARTITIONS; i++)
+            subs[i] = new Partition(new SpillFile(child1.getTupleDesc()),
+                    new SpillFile(child2.getTupleDesc()), part.depth + 1);
+        try (SpillFile.Reader r = part.build.reader()) {
+            Tuple t;
+            while ((t = r.next()) != null)
+                subs[partition(t.getField(pred.getField1()), part.depth + 1)].build.write(t);
+        }
+        try (SpillFile.Reader r = part.probe.reader()) {
+            Tuple t;
+            while ((t = r.next()) != null) {
+                Partition sub = subs[partition(t.getField(pred.getField2()), part.depth + 1)];
+                if (sub.build.size() > 0)
+                    sub.probe.write(t);
+            }
+        }
+        part.delete();
+        current = null;
+        for (int i = SpillFile.PARTITIONS - 1; i >= 0; i--) {
+            Partition sub = subs[i];
+            if (sub.build.size() > 0)
+                spilledPartitions++;
+            //所有元组又落进同一个分区，说明是同一个键，不再分区
+            sub.skewed = sub.build.size() == part.build.size();
+            spilledBytes += sub.build.bytes() + sub.probe.bytes();
+            pending.addFirst(sub);
+        }
+    }
+
+    //从当前分区的build文件读入最多maxtuples()个元组建哈希表
+    private void loadchunk() throws IOException {
+        map.clear();
+        long max = maxtuples();
+        Tuple t;
+        for (long n = 0; n < max && (t = buildReader.next()) != null; n++) {
+            put(map, t.getField(pred.getField1()), t);
+            current.loaded++;
+        }
+    }
+
+    //返回下一个要拿去查哈希表的probe元组，必要时切换到下一个分区
+    private Tuple nextprobe() throws DbException, TransactionAbortedException {
+        try {
+            if (probingChild) {
+                while (child2.hasNext()) {
+                    Tuple t = child2.next();
+                    if (buildParts == null)
+                        return t;
+                    int p = partition(t.getField(pred.getField2()), 0);
+                    if (p == 0 && resident)
+                        return t;
+                    //build分区为空时probe元组不可能匹配，直接丢掉
+                    if (buildParts[p].size() > 0)
+                        probeParts[p].write(t);
+                }
+                probingChild = false;
+                if (buildParts == null)
+                    return null;
+                queuepartitions();
+                if (!nextpartition())
+                    return null;
+            }
+            while (current != null) {
+                Tuple t = probeReader.next();
+                if (t != null)
+                    return t;
+                if (current.loaded < current.build.size()) {
+                    //分块连接：装入下一块build元组，重新扫描probe分区
+                    loadchunk();
+                    probeReader.close();
+                    probeReader = current.probe.reader();
+                } else if (!nextpartition()) {
+                    return null;
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            throw new DbException("failed to read join partition", e);
+        }
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -132,32 +417,23 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
+            listIt = null;
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+            // next tuple of child2, or of the current partition of child2
+            t2 = nextprobe();
+            if (t2 == null)
+                return null;
 
             // if match, create a combined tuple and fill it with the values
             // from both tuples
             List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            if (l != null)
+                listIt = l.iterator();
         }
-
-        return null;
     }
 
     @Override
@@ -170,5 +446,25 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
+    //一对分区：child1和child2中哈希到同一分区的元组
+    private static class Partition {
+        final SpillFile build, probe;
+        final int depth;
+        boolean skewed;
+        //build文件中已经装入哈希表的元组数
+        int loaded;
+
+        Partition(SpillFile build, SpillFile probe, int depth) {
+            this.build = build;
+            this.probe = probe;
+            this.depth = depth;
+        }
+
+        void delete() {
+            build.delete();
+            probe.delete();
+        }
+    }
+
 }
@@ -0,0 +1,209 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins child1 with a table stored in a {@link BTreeFile}
+ * keyed on the join field of child2. Instead of scanning child2, it searches
+ * the B+ tree once per tuple of child1 with
+ * {@link BTreeFile#indexIterator}, so each tuple of child1 costs one descent
+ * of the tree plus the leaves holding its matches.
+ * <p>
+ * child2 must be a {@link SeqScan} of the indexed table, possibly under one
+ * or more {@link Filter}s; the filters are applied to the tuples found in
+ * the index. child2 itself is never opened. It supports =, &lt;, &lt;=,
+ * &gt; and &gt;=.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final SeqScan scan;
+    private final BTreeFile index;
+    //child2中Filter的谓词，对从索引中找到的元组再过滤一遍
+    private final List<Predicate> filters = new ArrayList<>();
+    //在索引上查找时用的比较：t1.f1 op t2.f2 等价于 t2.f2 probeOp t1.f1
+    private final Predicate.Op probeOp;
+    private transient Tuple outerTuple;
+    private transient DbFileIterator probe;
+    private int probes;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            A scan, possibly filtered, of a B+ tree keyed on the join
+     *            field of p
+     * @throws IllegalArgumentException if child2 cannot be probed on the join
+     *             field (see {@link #canProbe}) or the predicate is not =,
+     *             &lt;, &lt;=, &gt; or &gt;=
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("index join does not support " + p.getOperator());
+        if (!canProbe(child2, p.getField2()))
+            throw new IllegalArgumentException("no index on the join field of " + child2);
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.scan = scanOf(child2);
+        this.index = (BTreeFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        for (OpIterator it = child2; it instanceof Filter; it = ((Filter) it).getChildren()[0])
+            filters.add(((Filter) it).getPredicate());
+        this.probeOp = mirror(p.getOperator());
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** @return true if an index join can evaluate the given operator */
+    public static boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN
+                || op == Predicate.Op.LESS_THAN_OR_EQ || op == Predicate.Op.GREATER_THAN
+                || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /**
+     * @return true if the given plan is a scan, possibly filtered, of a B+
+     *         tree keyed on the given field, so it can be probed by key
+     */
+    public static boolean canProbe(OpIterator plan, int field) {
+        SeqScan scan = scanOf(plan);
+        if (scan == null)
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    //去掉外面的Filter，返回下面的SeqScan；不是这种形状时返回null
+    static SeqScan scanOf(OpIterator plan) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        return plan instanceof SeqScan ? (SeqScan) plan : null;
+    }
+
+    private static Predicate.Op mirror(Predicate.Op op) {
+        switch (op) {
+            case LESS_THAN: return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ: return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN: return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ: return Predicate.Op.LESS_THAN_OR_EQ;
+            default: return op;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /** @return how many times the index has been searched since open() or rewind() */
+    public int getProbes() {
+        return probes;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        probes = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeProbe();
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeProbe();
+        child1.rewind();
+        probes = 0;
+    }
+
+    private void closeProbe() {
+        if (probe != null)
+            probe.close();
+        probe = null;
+        outerTuple = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples returned are the concatenation of the joining
+     * tuples of child1 and child2, as in {@link Join}.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (probe != null) {
+                while (probe.hasNext()) {
+                    Tuple t = probe.next();
+                    if (matches(t))
+                        return combine(outerTuple, t);
+                }
+                closeProbe();
+            }
+            if (!child1.hasNext())
+                return null;
+            outerTuple = child1.next();
+            probe = index.indexIterator(scan.getTransactionId(),
+                    new IndexPredicate(probeOp, outerTuple.getField(pred.getField1())));
+            probe.open();
+            probes++;
+        }
+    }
+
+    private boolean matches(Tuple t) {
+        for (Predicate f : filters) {
+            if (!f.filter(t))
+                return false;
+        }
+        return pred.filter(outerTuple, t);
+    }
+
+    private Tuple combine(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -1,15 +1,19 @@
 package simpledb.execution;
 
+import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
@@ -23,8 +27,18 @@ public class IntegerAggregator implements Aggregator {
     private int afield;
     private Op operator;
 
-    // 使用ConcurrentHashMap来存储聚合结果
+    // 使用ConcurrentHashMap来存储聚合结果，分组字段是字符串时使用
     private ConcurrentHashMap<Field, GroupCalResult> groupResults;
+    // 分组字段是整数或不分组时使用的分组表
+    private IntGroupTable table;
+
+    //估计的每个分组在内存中占用的字节数（键之外的部分）
+    private static final int GROUP_OVERHEAD = 64;
+    private static final int TABLE_GROUP_OVERHEAD = 28;
+    private long memoryBudget = SpilledGroups.DEFAULT_MEMORY_BUDGET;
+    //超出预算后新出现的分组，写出的每个元组为(分组值, sum, count, min, max)
+    private final SpilledGroups spilled;
+    private final TupleDesc stateDesc;
 
     // 内部类用于存储每个分组的计算结果
     private static class GroupCalResult {
@@ -40,6 +54,14 @@ public class IntegerAggregator implements Aggregator {
             if (value > max) max = value;
         }
 
+        //合并另一个部分聚合的结果，AVG由合并后的sum和count算出
+        public void merge(GroupCalResult other) {
+            sum += other.sum;
+            count += other.count;
+            if (other.min < min) min = other.min;
+            if (other.max > max) max = other.max;
+        }
+
         public int getSum() {
             return sum;
         }
@@ -62,6 +84,91 @@ public class IntegerAggregator implements Aggregator {
         }
     }
 
+    /**
+     * An open-addressing hash table from int group values to slots, with the
+     * sum, count, min and max of each group in arrays indexed by slot, so
+     * that merging a tuple into an existing group allocates nothing. Slots
+     * are numbered in the order the groups were inserted.
+     */
+    private static class IntGroupTable {
+        //哈希表中存槽号+1，0表示空位；线性探测，装载因子不超过1/2
+        private int[] index = new int[16];
+        private int[] keys = new int[8];
+        private int[] sum = new int[8];
+        private int[] count = new int[8];
+        private int[] min = new int[8];
+        private int[] max = new int[8];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        /** @return the slot of the group, or -1 if it is not in the table */
+        int find(int key) {
+            int mask = index.length - 1;
+            for (int h = hash(key) & mask; index[h] != 0; h = (h + 1) & mask) {
+                if (keys[index[h] - 1] == key)
+                    return index[h] - 1;
+            }
+            return -1;
+        }
+
+        /** Adds an empty group, which must not be in the table yet, and returns its slot. */
+        int insert(int key) {
+            if (size == keys.length) {
+                int n = keys.length * 2;
+                keys = Arrays.copyOf(keys, n);
+                sum = Arrays.copyOf(sum, n);
+                count = Arrays.copyOf(count, n);
+                min = Arrays.copyOf(min, n);
+                max = Arrays.copyOf(max, n);
+            }
+            int slot = size++;
+            keys[slot] = key;
+            sum[slot] = 0;
+            count[slot] = 0;
+            min[slot] = Integer.MAX_VALUE;
+            max[slot] = Integer.MIN_VALUE;
+            if (size * 2 > index.length) {
+                //扩容后重新放入所有槽，新槽也在其中
+                index = new int[index.length * 2];
+                for (int i = 0; i < size; i++)
+                    place(i);
+            } else {
+                place(slot);
+            }
+            return slot;
+        }
+
+        private void place(int slot) {
+            int mask = index.length - 1;
+            int h = hash(keys[slot]) & mask;
+            while (index[h] != 0)
+                h = (h + 1) & mask;
+            index[h] = slot + 1;
+        }
+
+        void add(int slot, int value) {
+            sum[slot] += value;
+            count[slot]++;
+            if (value < min[slot]) min[slot] = value;
+            if (value > max[slot]) max[slot] = value;
+        }
+
+        void merge(int slot, int s, int c, int mn, int mx) {
+            sum[slot] += s;
+            count[slot] += c;
+            if (mn < min[slot]) min[slot] = mn;
+            if (mx > max[slot]) max[slot] = mx;
+        }
+    }
+
     /**
      * Aggregate constructor
      *
@@ -77,11 +184,21 @@ public class IntegerAggregator implements Aggregator {
      *            the aggregation operator
      */
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this(gbfield, gbfieldtype, afield, what, 0);
+    }
+
+    //depth为第几层分区，读回的分区再次超出预算时用下一层的哈希再分
+    private IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what, int depth) {
         this.gbfield = gbfield;
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.operator = what;
         this.groupResults = new ConcurrentHashMap<>();
+        if (gbfieldtype != Type.STRING_TYPE)
+            this.table = new IntGroupTable();
+        this.spilled = new SpilledGroups(new Codec(), depth);
+        this.stateDesc = new TupleDesc(new Type[]{gbfieldtype == null ? Type.INT_TYPE : gbfieldtype,
+                Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE});
     }
 
     /**
@@ -92,6 +209,21 @@ public class IntegerAggregator implements Aggregator {
      *            the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
+        if (table != null) {
+            //整数分组：直接用int查表，不为每个元组建立对象
+            int key = gbfield >= 0 ? ((IntField) tup.getField(gbfield)).getValue() : NO_GROUPING;
+            int value = ((IntField) tup.getField(afield)).getValue();
+            int slot = table.find(key);
+            if (slot < 0) {
+                if (full()) {
+                    spill(new IntField(key), value, 1, value, value);
+                    return;
+                }
+                slot = table.insert(key);
+            }
+            table.add(slot, value);
+            return;
+        }
         Field groupByField = gbfield >= 0 ? tup.getField(gbfield) : null;
         IntField aggField = (IntField) tup.getField(afield);
         int value = aggField.getValue();
@@ -100,6 +232,10 @@ public class IntegerAggregator implements Aggregator {
         }
         GroupCalResult result = groupResults.get(groupByField);
         if (result == null) {
+            if (full()) {
+                spill(groupByField, value, 1, value, value);
+                return;
+            }
             result = new GroupCalResult();
             groupResults.put(groupByField, result);
         }
@@ -107,8 +243,128 @@ public class IntegerAggregator implements Aggregator {
         result.addValue(value);
     }
 
+    //把一个分组的部分结果并入：已在内存中的合并，内存已满时写出
+    private void add(Field group, int sum, int count, int min, int max) {
+        if (table != null) {
+            int key = ((IntField) group).getValue();
+            int slot = table.find(key);
+            if (slot < 0) {
+                if (full()) {
+                    spill(group, sum, count, min, max);
+                    return;
+                }
+                slot = table.insert(key);
+            }
+            table.merge(slot, sum, count, min, max);
+            return;
+        }
+        GroupCalResult r = new GroupCalResult();
+        r.sum = sum;
+        r.count = count;
+        r.min = min;
+        r.max = max;
+        GroupCalResult result = groupResults.get(group);
+        if (result != null) {
+            result.merge(r);
+        } else if (full()) {
+            spill(group, r.sum, r.count, r.min, r.max);
+        } else {
+            groupResults.put(group, r);
+        }
+    }
+
+    //内存中的分组数是否已达到预算；最后一层分区不再写出
+    private boolean full() {
+        if (!spilled.canSpill())
+            return false;
+        if (table != null)
+            return table.size() >= Math.max(1, memoryBudget / TABLE_GROUP_OVERHEAD);
+        return groupResults.size() >= Math.max(1, memoryBudget / (GROUP_OVERHEAD + gbfieldtype.getLen()));
+    }
+
+    private void spill(Field group, int sum, int count, int min, int max) {
+        spilled.write(group, state(group, sum, count, min, max));
+    }
+
+    private Tuple state(Field group, int sum, int count, int min, int max) {
+        Tuple state = new Tuple(stateDesc);
+        state.setField(0, group);
+        state.setField(1, new IntField(sum));
+        state.setField(2, new IntField(count));
+        state.setField(3, new IntField(min));
+        state.setField(4, new IntField(max));
+        return state;
+    }
+
+    //分组状态写成(分组值, sum, count, min, max)的元组，读回时并入下一层的聚合器
+    private class Codec implements SpilledGroups.Codec {
+        public SpilledGroups.Codec child(int depth) {
+            IntegerAggregator sub = new IntegerAggregator(gbfield, gbfieldtype, afield, operator, depth);
+            sub.memoryBudget = memoryBudget;
+            return sub.new Codec();
+        }
+
+        public Tuple state(Field group) {
+            if (table != null) {
+                int slot = table.find(((IntField) group).getValue());
+                return IntegerAggregator.this.state(group, table.sum[slot], table.count[slot],
+                        table.min[slot], table.max[slot]);
+            }
+            GroupCalResult r = groupResults.get(group);
+            return IntegerAggregator.this.state(group, r.sum, r.count, r.min, r.max);
+        }
+
+        public void add(Tuple state) {
+            IntegerAggregator.this.add(state.getField(0), ((IntField) state.getField(1)).getValue(),
+                    ((IntField) state.getField(2)).getValue(),
+                    ((IntField) state.getField(3)).getValue(),
+                    ((IntField) state.getField(4)).getValue());
+        }
+
+        public void forEachGroup(Consumer<Field> action) {
+            if (table != null) {
+                for (int j = 0; j < table.size(); j++)
+                    action.accept(new IntField(table.keys[j]));
+            }
+            groupResults.keySet().forEach(action);
+        }
+
+        public OpIterator iterator() {
+            return IntegerAggregator.this.iterator();
+        }
+
+        public int getSpilledPartitions() {
+            return IntegerAggregator.this.getSpilledPartitions();
+        }
+    }
+
+    public void merge(Aggregator other) {
+        IntegerAggregator o = (IntegerAggregator) other;
+        if (table != null) {
+            IntGroupTable t = o.table;
+            for (int i = 0; i < t.size(); i++)
+                add(new IntField(t.keys[i]), t.sum[i], t.count[i], t.min[i], t.max[i]);
+        }
+        for (Map.Entry<Field, GroupCalResult> e : o.groupResults.entrySet()) {
+            GroupCalResult r = e.getValue();
+            add(e.getKey(), r.sum, r.count, r.min, r.max);
+        }
+        spilled.adopt(o.spilled);
+    }
+
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public int getSpilledPartitions() {
+        return spilled.count();
+    }
+
     /**
-     * Create a OpIterator over group aggregate results.
+     * Create a OpIterator over group aggregate results. The groups kept in
+     * memory come first, then the spilled partitions, each read back and
+     * aggregated in turn. Closing the iterator deletes the spilled
+     * partitions.
      *
      * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
      *         if using group, or a single (aggregateVal) if no grouping. The
@@ -123,9 +379,15 @@ public class IntegerAggregator implements Aggregator {
 
         private final Map<Field, GroupCalResult> groupResults;
         private Iterator<Map.Entry<Field, GroupCalResult>> iterator;
+        //下一个要输出的内存中的分组
+        private Map.Entry<Field, GroupCalResult> pending;
         private final TupleDesc tupleDesc;
         private final boolean isGrouped;
         private final Op operator;
+        //整数分组时下一个要输出的槽
+        private int pos;
+        //写出的分组，内存中的分组输出完后逐个分区读回
+        private final SpilledGroups.Reader spilledReader = spilled.reader();
 
         public IntegerAggregatorIterator(Map<Field, GroupCalResult> groupResults, int gbfield, Type gbfieldtype, Op operator) {
             this.groupResults = groupResults;
@@ -146,36 +408,44 @@ public class IntegerAggregator implements Aggregator {
             // 打开迭代器时不需要额外操作
         }
 
-        @Override
-        public boolean hasNext(){
-            return iterator.hasNext();
+        //内存中是否还有分组没有输出；跳过留到读回分区时输出的分组
+        private boolean inMemory() {
+            if (table != null) {
+                while (pos < table.size() && spilled.deferred(new IntField(table.keys[pos])))
+                    pos++;
+                return pos < table.size();
+            }
+            while (pending == null && iterator.hasNext()) {
+                Map.Entry<Field, GroupCalResult> e = iterator.next();
+                if (!spilled.deferred(e.getKey()))
+                    pending = e;
+            }
+            return pending != null;
         }
 
         @Override
-        public Tuple next(){
-            Map.Entry<Field, GroupCalResult> entry = iterator.next();
-            Field groupValue = entry.getKey();
-            GroupCalResult result = entry.getValue();
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            return inMemory() || spilledReader.hasNext();
+        }
 
-            int aggregateValue = 0;
-            switch (operator) {
-                case MIN:
-                    aggregateValue = result.getMin();
-                    break;
-                case MAX:
-                    aggregateValue = result.getMax();
-                    break;
-                case SUM:
-                    aggregateValue = result.getSum();
-                    break;
-                case AVG:
-                    aggregateValue = result.getAverage();
-                    break;
-                case COUNT:
-                    aggregateValue = result.getCount();
-                    break;
-                default:
-                    throw new UnsupportedOperationException("Unsupported aggregation operator: " + operator);
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            if (!inMemory())
+                return spilledReader.next();
+            Field groupValue;
+            int aggregateValue;
+            if (table != null) {
+                groupValue = new IntField(table.keys[pos]);
+                aggregateValue = aggregate(table.sum[pos], table.count[pos], table.min[pos], table.max[pos]);
+                pos++;
+            } else {
+                Map.Entry<Field, GroupCalResult> entry = pending;
+                pending = null;
+                groupValue = entry.getKey();
+                GroupCalResult result = entry.getValue();
+                aggregateValue = aggregate(result.getSum(), result.getCount(), result.getMin(), result.getMax());
             }
 
             Tuple tuple = new Tuple(tupleDesc);
@@ -194,6 +464,26 @@ public class IntegerAggregator implements Aggregator {
         @Override
         public void rewind(){
             iterator = groupResults.entrySet().iterator();
+            pending = null;
+            pos = 0;
+            spilledReader.rewind();
+        }
+
+        private int aggregate(int sum, int count, int min, int max) {
+            switch (operator) {
+                case MIN:
+                    return min;
+                case MAX:
+                    return max;
+                case SUM:
+                    return sum;
+                case AVG:
+                    return count == 0 ? 0 : sum / count;
+                case COUNT:
+                    return count;
+                default:
+                    throw new UnsupportedOperationException("Unsupported aggregation operator: " + operator);
+            }
         }
 
         @Override
@@ -203,7 +493,8 @@ public class IntegerAggregator implements Aggregator {
 
         @Override
         public void close() {
-            // 关闭迭代器时不需要额外操作
+            spilledReader.close();
+            spilled.delete();
         }
     }
 }
\ No newline at end of file
@@ -1,7 +1,9 @@
 package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -17,8 +19,13 @@ public class Join extends Operator {
     private JoinPredicate joinPredicate;
     private TupleDesc tupleDesc;
     private OpIterator[] child;
-    private Tuple nowTuple;
 //    private OpIterator child2;
+    //块嵌套循环：一次读入一块外层元组，每块只重新扫描一遍内层
+    private int blockPages = 0;
+    private final List<Tuple> block = new ArrayList<>();
+    private int blockPos;
+    private Tuple innerTuple;
+    private int innerScans;
 
 
     /**
@@ -73,12 +80,37 @@ public class Join extends Operator {
         return tupleDesc;
     }
 
+    /**
+     * Set how many pages of outer tuples are buffered at a time; the inner
+     * relation is scanned once per block instead of once per outer tuple.
+     * The default, 0, uses a quarter of the buffer pool. Takes effect on the
+     * next block that is read.
+     *
+     * @param pages the block size in pages
+     */
+    public void setBlockPages(int pages) {
+        this.blockPages = Math.max(0, pages);
+    }
+
+    /** @return how many pages of outer tuples are buffered at a time */
+    public int getBlockPages() {
+        if (blockPages > 0)
+            return blockPages;
+        return Math.max(1, Database.getBufferPool().getNumPages() / 4);
+    }
+
+    /** @return how many times the inner relation has been scanned since open() or rewind() */
+    public int getInnerScans() {
+        return innerScans;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         super.open();
         child[0].open();
         child[1].open();
+        resetBlock();
     }
 
     public void close() {
@@ -86,12 +118,36 @@ public class Join extends Operator {
         super.close();
         child[0].close();
         child[1].close();
+        resetBlock();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child[0].rewind();
         child[1].rewind();
+        resetBlock();
+    }
+
+    private void resetBlock() {
+        block.clear();
+        blockPos = 0;
+        innerTuple = null;
+        innerScans = 0;
+    }
+
+    //读入下一块外层元组；除了第一块，每块都要把内层从头再扫一遍
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        long capacity = Math.max(1, (long) getBlockPages() * BufferPool.getPageSize()
+                / Math.max(1, child[0].getTupleDesc().getSize()));
+        while (block.size() < capacity && child[0].hasNext())
+            block.add(child[0].next());
+        if (block.isEmpty())
+            return false;
+        if (innerScans > 0)
+            child[1].rewind();
+        innerScans++;
+        return true;
     }
 
     /**
@@ -100,6 +156,10 @@ public class Join extends Operator {
      * satisfies the join predicate. There are many possible implementations;
      * the simplest is a nested loops join.
      * <p>
+     * This implementation is a block nested loops join: it buffers a block of
+     * tuples from child1 (see {@link #setBlockPages}) and matches each tuple
+     * of child2 against the whole block, so child2 is scanned once per block.
+     * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
      * relation. Therefore, if an equality predicate is used there will be two
@@ -114,31 +174,32 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        OpIterator childtemp = child[1];
-        while(child[0].hasNext() || nowTuple!=null) {
-//            Tuple tupleleft = child[0].next();
-            if(nowTuple == null && child[0].hasNext()) {
-                nowTuple = child[0].next();
-            }
-            while(child[1].hasNext()) {
-                Tuple tupleright = child[1].next();
-                if(joinPredicate.filter(nowTuple, tupleright)) {
-                    Tuple newtuple = new Tuple(TupleDesc.merge(nowTuple.getTupleDesc(), tupleright.getTupleDesc()));
-                    for(int i=0;i<nowTuple.getTupleDesc().numFields();i++)
-                    {
-                        newtuple.setField(i,nowTuple.getField(i));
-                    }
-                    for(int j=0;j<tupleright.getTupleDesc().numFields();j++)
-                    {
-                        newtuple.setField(nowTuple.getTupleDesc().numFields()+j,tupleright.getField(j));
+        while (true) {
+            if (innerTuple != null) {
+                //当前内层元组和块中剩下的外层元组逐个比较
+                while (blockPos < block.size()) {
+                    Tuple left = block.get(blockPos++);
+                    if (joinPredicate.filter(left, innerTuple)) {
+                        int n1 = left.getTupleDesc().numFields();
+                        Tuple newtuple = new Tuple(tupleDesc);
+                        for (int i = 0; i < n1; i++)
+                            newtuple.setField(i, left.getField(i));
+                        for (int j = 0; j < innerTuple.getTupleDesc().numFields(); j++)
+                            newtuple.setField(n1 + j, innerTuple.getField(j));
+                        return newtuple;
                     }
-                    return newtuple;
                 }
+                innerTuple = null;
             }
-            nowTuple = null;
-            child[1].rewind();
+            if (!block.isEmpty() && child[1].hasNext()) {
+                innerTuple = child[1].next();
+                blockPos = 0;
+                continue;
+            }
+            //内层扫完了，换下一块外层元组
+            if (!loadBlock())
+                return null;
         }
-        return null;
     }
 
     @Override
@@ -2,7 +2,6 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -16,11 +15,14 @@ public class OrderBy extends Operator {
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
     private final int orderByField;
     private final String orderByFieldName;
-    private Iterator<Tuple> it;
     private final boolean asc;
+    private long memoryBudget = ExternalSort.DEFAULT_MEMORY_BUDGET;
+    private ExternalSort sort;
+    private ExternalSort.Merge it;
+    private long spilledBytes;
+    private int runCount;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -59,24 +61,60 @@ public class OrderBy extends Operator {
         return td;
     }
 
+    /**
+     * Set how many tuple bytes the sort may hold in memory; beyond that,
+     * sorted runs are written to temporary files and merged on output.
+     * Takes effect on the next open().
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /** @return bytes the last sort wrote to temporary files */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /** @return number of sorted runs the last sort wrote to disk */
+    public int getRunCount() {
+        return runCount;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
+        // sort the child's tuples, spilling sorted runs once the budget is used
+        closeSort();
+        sort = new ExternalSort(td, new TupleComparator(orderByField, asc), memoryBudget);
         while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            sort.add(child.next());
+        spilledBytes = sort.getSpilledBytes();
+        runCount = sort.getRunCount();
+        it = sort.iterator();
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        closeSort();
+    }
+
+    private void closeSort() {
+        if (it != null) {
+            it.close();
+            it = null;
+        }
+        if (sort != null) {
+            sort.close();
+            sort = null;
+        }
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException {
+        if (it != null) {
+            it.close();
+        }
+        it = sort.iterator();
     }
 
     /**
@@ -86,8 +124,8 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
+    protected Tuple fetchNext() throws NoSuchElementException, DbException {
+        if (it != null) {
             return it.next();
         } else
             return null;
@@ -104,25 +142,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
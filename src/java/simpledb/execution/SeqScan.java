@@ -7,6 +7,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -17,6 +19,11 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * A scan of a table stored in a {@link BTreeFile} may be restricted to a range
+ * of keys with {@link #setKeyRange}. The leaves of the tree hold every column,
+ * so such a scan searches the tree for the start of the range and reads only
+ * the leaf pages holding it, in key order.
  */
 public class SeqScan implements OpIterator {
 
@@ -25,6 +32,8 @@ public class SeqScan implements OpIterator {
     private int tableid;
     private String tableAlias;
     private DbFileIterator dbFileIterator;
+    //B+树上键的范围，为null时这一端不受限制
+    private IndexPredicate keyFrom, keyTo;
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -58,6 +67,20 @@ public class SeqScan implements OpIterator {
         return tableName;
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return this.tableid;
+    }
+
+    /**
+     * @return the transaction this scan runs as a part of
+     */
+    public TransactionId getTransactionId() {
+        return this.tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -89,9 +112,64 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * @return true if the table is stored in a {@link BTreeFile} keyed on the
+     *         given field, so that the scan can be restricted to a key range
+     */
+    public boolean isKeyedOn(int field) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        return file instanceof BTreeFile && ((BTreeFile) file).keyField() == field;
+    }
+
+    /**
+     * Restrict the scan to the tuples whose keys lie in a range. The scan then
+     * reads only the leaf pages of the B+ tree that hold the range.
+     *
+     * @param from
+     *            an =, &gt; or &gt;= predicate on the key, or null if the range
+     *            starts at the smallest key
+     * @param to
+     *            a &lt; or &lt;= predicate on the key, or null if the range ends
+     *            at the largest key
+     * @throws IllegalArgumentException
+     *             if the table is not stored in a {@link BTreeFile} or a
+     *             predicate does not bound the range on its side
+     */
+    public void setKeyRange(IndexPredicate from, IndexPredicate to) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof BTreeFile))
+            throw new IllegalArgumentException("table " + getTableName() + " is not a B+ tree");
+        if (from != null && from.getOp() != Predicate.Op.EQUALS
+                && from.getOp() != Predicate.Op.GREATER_THAN
+                && from.getOp() != Predicate.Op.GREATER_THAN_OR_EQ)
+            throw new IllegalArgumentException("not a lower bound: " + from.getOp());
+        if (to != null && to.getOp() != Predicate.Op.LESS_THAN
+                && to.getOp() != Predicate.Op.LESS_THAN_OR_EQ)
+            throw new IllegalArgumentException("not an upper bound: " + to.getOp());
+        this.keyFrom = from;
+        this.keyTo = to;
+    }
+
+    /** @return the lower end of the key range, or null if there is none */
+    public IndexPredicate getKeyFrom() {
+        return keyFrom;
+    }
+
+    /** @return the upper end of the key range, or null if there is none */
+    public IndexPredicate getKeyTo() {
+        return keyTo;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        dbFileIterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (keyFrom != null) {
+            dbFileIterator = ((BTreeFile) file).indexIterator(tid, keyFrom, keyTo);
+        } else if (keyTo != null) {
+            //只有上界时从最左边的叶子开始，超过上界就停止
+            dbFileIterator = ((BTreeFile) file).indexIterator(tid, keyTo);
+        } else {
+            dbFileIterator = file.iterator(tid);
+        }
         dbFileIterator.open();
     }
 
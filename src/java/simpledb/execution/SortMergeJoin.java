@@ -0,0 +1,419 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two inputs ordered on their join fields. Inputs that
+ * are not already in ascending order of the join field are sorted with an
+ * {@link ExternalSort}. It supports =, &lt;, &lt;=, &gt; and &gt;=.
+ * <p>
+ * Both inputs are read once, in ascending order. One input is the outer
+ * input and the other the inner input; for every outer tuple the inner tuples
+ * it matches are kept in a buffer, which spills to disk beyond the memory
+ * budget:
+ * <ul>
+ * <li>for =, the buffer holds the inner tuples with the current key;</li>
+ * <li>for &gt; and &gt;=, child1 is the outer input and the buffer holds the
+ * child2 tuples below (or not above) the current key, a prefix that only
+ * grows;</li>
+ * <li>for &lt; and &lt;=, child2 is the outer input in the same way, since
+ * a &lt; b is b &gt; a.</li>
+ * </ul>
+ * The result holds the same tuples as a nested loops join, but not in the
+ * same order.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final boolean sorted1, sorted2;
+    private long memoryBudget = ExternalSort.DEFAULT_MEMORY_BUDGET;
+    //child2作外层时为true（<和<=）
+    private final boolean swapped;
+    private transient Input outer, inner;
+    private transient Buffer buffer;
+    private transient Tuple outerTuple;
+    private transient Buffer.Cursor cursor;
+    //buffer中元组的键，只在等值连接时使用
+    private transient Field groupKey;
+
+    /**
+     * Constructor. Both children are sorted on their join fields before
+     * they are merged.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, false, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     * @param sorted1
+     *            true if child1 already returns its tuples in ascending order
+     *            of its join field, so it need not be sorted
+     * @param sorted2
+     *            true if child2 already returns its tuples in ascending order
+     *            of its join field
+     * @throws IllegalArgumentException if the predicate is not =, &lt;,
+     *             &lt;=, &gt; or &gt;=
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+                         boolean sorted1, boolean sorted2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("sort-merge join does not support " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.sorted1 = sorted1;
+        this.sorted2 = sorted2;
+        this.swapped = p.getOperator() == Predicate.Op.LESS_THAN
+                || p.getOperator() == Predicate.Op.LESS_THAN_OR_EQ;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** @return true if a sort-merge join can evaluate the given operator */
+    public static boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN
+                || op == Predicate.Op.LESS_THAN_OR_EQ || op == Predicate.Op.GREATER_THAN
+                || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /**
+     * @return true if the given plan is known to return its tuples in
+     *         ascending order of the given field, so that it need not be
+     *         sorted again
+     */
+    public static boolean isSortedOn(OpIterator plan, int field) {
+        if (plan instanceof OrderBy) {
+            OrderBy o = (OrderBy) plan;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /**
+     * Set how many tuple bytes each of the two sorts, and the buffer of
+     * matching inner tuples, may hold in memory. Takes effect on the next
+     * open().
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /** @return bytes written to temporary files by the sorts and the buffer */
+    public long getSpilledBytes() {
+        long bytes = 0;
+        if (outer != null)
+            bytes += outer.spilledBytes;
+        if (inner != null)
+            bytes += inner.spilledBytes;
+        if (buffer != null)
+            bytes += buffer.spilledBytes;
+        return bytes;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        closeInputs();
+        Input in1 = new Input(child1, pred.getField1(), sorted1);
+        Input in2 = new Input(child2, pred.getField2(), sorted2);
+        outer = swapped ? in2 : in1;
+        inner = swapped ? in1 : in2;
+        outer.start();
+        inner.start();
+        buffer = new Buffer(inner.child.getTupleDesc());
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeInputs();
+        child2.close();
+        child1.close();
+    }
+
+    private void closeInputs() {
+        if (outer != null)
+            outer.close();
+        if (inner != null)
+            inner.close();
+        if (cursor != null)
+            cursor.close();
+        if (buffer != null)
+            buffer.clear();
+        outer = null;
+        inner = null;
+        buffer = null;
+        outerTuple = null;
+        cursor = null;
+        groupKey = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (cursor != null)
+            cursor.close();
+        outer.rewind();
+        inner.rewind();
+        buffer.clear();
+        outerTuple = null;
+        cursor = null;
+        groupKey = null;
+    }
+
+    //比较两个键：-1、0或1
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+
+    //为新的外层元组准备好buffer中与它匹配的内层元组
+    private void match(Field key) throws DbException, TransactionAbortedException {
+        Predicate.Op op = pred.getOperator();
+        if (op == Predicate.Op.EQUALS) {
+            if (groupKey != null && compare(groupKey, key) == 0)
+                return;
+            buffer.clear();
+            groupKey = key;
+            while (inner.peek() != null && compare(inner.key(), key) < 0)
+                inner.next();
+            while (inner.peek() != null && compare(inner.key(), key) == 0)
+                buffer.add(inner.next());
+        } else {
+            //> 和 < 要求内层键严格小于外层键，>= 和 <= 允许相等
+            boolean strict = op == Predicate.Op.GREATER_THAN || op == Predicate.Op.LESS_THAN;
+            while (inner.peek() != null) {
+                int c = compare(inner.key(), key);
+                if (c > 0 || (strict && c == 0))
+                    break;
+                buffer.add(inner.next());
+            }
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples returned are the concatenation of the joining
+     * tuples of child1 and child2, as in {@link Join}.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (cursor != null) {
+                Tuple t = cursor.next();
+                if (t != null)
+                    return swapped ? combine(t, outerTuple) : combine(outerTuple, t);
+                cursor = null;
+            }
+            outerTuple = outer.next();
+            if (outerTuple == null)
+                return null;
+            match(outerTuple.getField(outer.field));
+            cursor = buffer.cursor();
+        }
+    }
+
+    private Tuple combine(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+    //一个按连接字段升序读出的输入：已经有序的直接读子节点，否则先外部排序
+    private class Input {
+        final OpIterator child;
+        final int field;
+        final boolean sorted;
+        ExternalSort sort;
+        ExternalSort.Merge merge;
+        Tuple peeked;
+        long spilledBytes;
+
+        Input(OpIterator child, int field, boolean sorted) {
+            this.child = child;
+            this.field = field;
+            this.sorted = sorted;
+        }
+
+        void start() throws DbException, TransactionAbortedException {
+            if (sorted)
+                return;
+            sort = new ExternalSort(child.getTupleDesc(), new TupleComparator(field, true), memoryBudget);
+            while (child.hasNext())
+                sort.add(child.next());
+            spilledBytes = sort.getSpilledBytes();
+            merge = sort.iterator();
+        }
+
+        Tuple peek() throws DbException, TransactionAbortedException {
+            if (peeked == null) {
+                if (sorted)
+                    peeked = child.hasNext() ? child.next() : null;
+                else
+                    peeked = merge.next();
+            }
+            return peeked;
+        }
+
+        Field key() throws DbException, TransactionAbortedException {
+            return peek().getField(field);
+        }
+
+        Tuple next() throws DbException, TransactionAbortedException {
+            Tuple t = peek();
+            peeked = null;
+            return t;
+        }
+
+        void rewind() throws DbException, TransactionAbortedException {
+            peeked = null;
+            if (sorted) {
+                child.rewind();
+            } else {
+                merge.close();
+                merge = sort.iterator();
+            }
+        }
+
+        void close() {
+            if (merge != null)
+                merge.close();
+            if (sort != null)
+                sort.close();
+            merge = null;
+            sort = null;
+            peeked = null;
+        }
+    }
+
+    //与当前外层元组匹配的内层元组；超出内存预算的部分写到SpillFile
+    private class Buffer {
+        final TupleDesc td;
+        final long max;
+        final List<SpillFile> runs = new ArrayList<>();
+        final List<Tuple> memory = new ArrayList<>();
+        long spilledBytes;
+
+        Buffer(TupleDesc td) {
+            this.td = td;
+            this.max = Math.max(1, memoryBudget / Math.max(1, td.getSize()));
+        }
+
+        void add(Tuple t) throws DbException {
+            memory.add(t);
+            if (memory.size() < max)
+                return;
+            try {
+                SpillFile run = new SpillFile(td);
+                for (Tuple m : memory)
+                    run.write(m);
+                spilledBytes += run.bytes();
+                runs.add(run);
+            } catch (IOException e) {
+                throw new DbException("failed to spill join buffer", e);
+            }
+            memory.clear();
+        }
+
+        void clear() {
+            for (SpillFile run : runs)
+                run.delete();
+            runs.clear();
+            memory.clear();
+        }
+
+        Cursor cursor() {
+            return new Cursor();
+        }
+
+        //先读各个写出的段，再读内存中的元组
+        class Cursor {
+            int run = 0;
+            int pos = 0;
+            SpillFile.Reader reader;
+
+            /** @return the next buffered tuple, or null at the end */
+            Tuple next() throws DbException {
+                try {
+                    while (run < runs.size()) {
+                        if (reader == null)
+                            reader = runs.get(run).reader();
+                        Tuple t = reader.next();
+                        if (t != null)
+                            return t;
+                        reader.close();
+                        reader = null;
+                        run++;
+                    }
+                } catch (IOException e) {
+                    throw new DbException("failed to read join buffer", e);
+                }
+                return pos < memory.size() ? memory.get(pos++) : null;
+            }
+
+            void close() {
+                try {
+                    if (reader != null)
+                        reader.close();
+                } catch (IOException ignored) {
+                }
+                reader = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.*;
+
+/**
+ * A temporary file of tuples that an operator writes when its input does not
+ * fit in its memory budget. Tuples are stored back to back in a compact
+ * binary format: an int field takes 4 bytes and a string field its
+ * length-prefixed bytes, with no page structure or padding. The file is
+ * written once, then read any number of times, and deleted with
+ * {@link #delete()}.
+ */
+public class SpillFile {
+
+    /** Number of partitions an operator splits its spilled input into. */
+    static final int PARTITIONS = 16;
+    /** How many times a partition that is still too big is split again. */
+    static final int MAX_DEPTH = 3;
+
+    private final File file;
+    private final TupleDesc td;
+    private final Type[] types;
+    private DataOutputStream out;
+    private int count;
+
+    /**
+     * Creates an empty spill file for tuples of the given schema.
+     *
+     * @param td the schema of the tuples that will be written
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.types = new Type[td.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = td.getFieldType(i);
+        }
+        this.file = File.createTempFile("simpledb-spill", ".tmp");
+        file.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    /**
+     * Picks the partition a spilled tuple goes to by the hash of its key.
+     * Each depth of repartitioning hashes with a different seed, so the
+     * keys of a partition that is split again spread over the new
+     * partitions instead of landing in one of them.
+     *
+     * @param key the key the input is partitioned on
+     * @param depth how many times the input has already been partitioned
+     * @param partitions the number of partitions
+     * @return the partition of the key, from 0 to partitions - 1
+     */
+    static int partition(Object key, int depth, int partitions) {
+        int h = key.hashCode() ^ (depth * 0x9E3779B9);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, partitions);
+    }
+
+    /**
+     * Appends a tuple. Must not be called after {@link #reader()}.
+     */
+    public void write(Tuple t) throws IOException {
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == Type.INT_TYPE) {
+                out.writeInt(((IntField) t.getField(i)).getValue());
+            } else {
+                out.writeUTF(((StringField) t.getField(i)).getValue());
+            }
+        }
+        count++;
+    }
+
+    /** @return number of tuples written */
+    public int size() {
+        return count;
+    }
+
+    /** @return size of the file in bytes, once writing has finished */
+    public long bytes() throws IOException {
+        finish();
+        return file.length();
+    }
+
+    //写完后关闭输出流，之后只能读
+    private void finish() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Opens a new reader positioned at the first tuple. Finishes writing if
+     * the file is still being written.
+     */
+    public Reader reader() throws IOException {
+        finish();
+        return new Reader();
+    }
+
+    /** Closes and removes the file. */
+    public void delete() {
+        try {
+            finish();
+        } catch (IOException ignored) {
+        }
+        file.delete();
+    }
+
+    /**
+     * Reads the tuples of a spill file back in the order they were written.
+     */
+    public class Reader implements Closeable {
+        private final DataInputStream in;
+        private int remaining = count;
+
+        private Reader() throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        }
+
+        /** @return the next tuple, or null at the end of the file */
+        public Tuple next() throws IOException {
+            if (remaining == 0) {
+                return null;
+            }
+            remaining--;
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == Type.INT_TYPE) {
+                    t.setField(i, new IntField(in.readInt()));
+                } else {
+                    t.setField(i, new StringField(in.readUTF(), Type.STRING_LEN));
+                }
+            }
+            return t;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * The groups an aggregator could not keep in its memory budget. Each one is
+ * written as a tuple of the group value followed by its partial aggregate
+ * state, to one of {@link SpillFile#PARTITIONS} spill files chosen by the hash of
+ * the group value, so that all the states of a group end up in the
+ * same partition and each partition can be aggregated on its own.
+ * <p>
+ * The aggregator only says how the state of a group is written as a tuple
+ * and read back, through a {@link Codec}; reading the partitions back,
+ * aggregating each in a new aggregator one level of partitioning deeper,
+ * is done here.
+ */
+class SpilledGroups {
+
+    /** Default memory budget of an aggregate's groups, in bytes. */
+    static final long DEFAULT_MEMORY_BUDGET = 16L << 20;
+
+    /**
+     * How the aggregator whose groups are spilled writes the state of a
+     * group as a tuple of the group value followed by the state, and reads
+     * such tuples back.
+     */
+    interface Codec {
+        /**
+         * @return the codec of a new, empty aggregator built like this one,
+         *         that partitions its groups at the given depth
+         */
+        Codec child(int depth);
+
+        /** @return the state of a group kept in memory, as a tuple */
+        Tuple state(Field group);
+
+        /**
+         * Merge the state of a group into the aggregator, keeping it in
+         * memory or spilling it like the first tuple of a new group.
+         */
+        void add(Tuple state);
+
+        /** Call action with the value of each group kept in memory. */
+        void forEachGroup(Consumer<Field> action);
+
+        /** @return the aggregator's iterator */
+        OpIterator iterator();
+
+        /** @return the aggregator's {@link Aggregator#getSpilledPartitions()} */
+        int getSpilledPartitions();
+    }
+
+    private final Codec codec;
+    private final int depth;
+    //每个分区的文件：自己写的一个，加上合并进来的其他部分聚合写的；第一次写出前为null
+    private List<List<SpillFile>> partitions;
+    private SpillFile[] writing;
+    //合并进来的部分聚合写出的分区中可能有内存里也有的分组
+    private boolean adopted;
+    //读回各分区时再次写出的分区数
+    private int repartitioned;
+
+    /**
+     * @param codec how the aggregator's group states are written and read
+     * @param depth how many times the groups have already been partitioned;
+     *              each depth hashes the group values differently
+     */
+    SpilledGroups(Codec codec, int depth) {
+        this.codec = codec;
+        this.depth = depth;
+    }
+
+    /** @return true if groups may be spilled; the last depth keeps all its groups in memory */
+    boolean canSpill() {
+        return depth < SpillFile.MAX_DEPTH;
+    }
+
+    /** @return the partition the states of the given group are written to */
+    int partitionOf(Field group) {
+        return SpillFile.partition(group, depth, SpillFile.PARTITIONS);
+    }
+
+    private void allocate() {
+        if (partitions == null) {
+            partitions = new ArrayList<>();
+            for (int i = 0; i < SpillFile.PARTITIONS; i++)
+                partitions.add(new ArrayList<>());
+            writing = new SpillFile[SpillFile.PARTITIONS];
+        }
+    }
+
+    /** Write the state of a group, as a tuple of the group value followed by the state. */
+    void write(Field group, Tuple state) {
+        allocate();
+        int p = partitionOf(group);
+        try {
+            if (writing[p] == null) {
+                writing[p] = new SpillFile(state.getTupleDesc());
+                partitions.get(p).add(writing[p]);
+            }
+            writing[p].write(state);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Take over the files of another aggregator's groups spilled at the same
+     * depth, when that aggregator is merged into this one.
+     */
+    void adopt(SpilledGroups other) {
+        if (other.partitions == null)
+            return;
+        allocate();
+        for (int i = 0; i < SpillFile.PARTITIONS; i++) {
+            partitions.get(i).addAll(other.partitions.get(i));
+            other.partitions.get(i).clear();
+            other.writing[i] = null;
+        }
+        adopted = true;
+    }
+
+    private boolean empty(int i) {
+        return partitions == null || partitions.get(i).isEmpty();
+    }
+
+    /**
+     * A group kept in memory may also have states in the spill files adopted
+     * from another aggregator; it must then be left out of the in-memory
+     * groups and aggregated with its partition instead.
+     *
+     * @return true if the group is aggregated with its partition
+     */
+    boolean deferred(Field group) {
+        return adopted && !empty(partitionOf(group));
+    }
+
+    //读回第i个分区，在下一层的聚合器中聚合
+    private Codec load(int i) throws DbException {
+        Codec sub = codec.child(depth + 1);
+        if (adopted) {
+            //内存中落在这个分区的分组也在这里一起聚合；state给出的是复制的一份，rewind时还要再读
+            codec.forEachGroup(group -> {
+                if (partitionOf(group) == i)
+                    sub.add(codec.state(group));
+            });
+        }
+        try {
+            for (SpillFile f : partitions.get(i)) {
+                try (SpillFile.Reader r = f.reader()) {
+                    for (Tuple t = r.next(); t != null; t = r.next())
+                        sub.add(t);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new DbException("failed to read spilled groups", e);
+        }
+        return sub;
+    }
+
+    /** @return the number of partitions holding at least one group, including partitions split again when read back */
+    int count() {
+        int n = repartitioned;
+        if (partitions != null) {
+            for (List<SpillFile> files : partitions) {
+                if (!files.isEmpty())
+                    n++;
+            }
+        }
+        return n;
+    }
+
+    //删除文件，但保留记录，count()仍然可用
+    void delete() {
+        if (partitions == null)
+            return;
+        for (List<SpillFile> files : partitions) {
+            for (SpillFile f : files)
+                f.delete();
+        }
+    }
+
+    /** @return a reader of the spilled groups, aggregated one partition at a time */
+    Reader reader() {
+        return new Reader();
+    }
+
+    /**
+     * Reads the partitions back in turn, each aggregated with its deferred
+     * in-memory groups in a new aggregator, and returns that aggregator's
+     * result tuples.
+     */
+    class Reader {
+        //下一个要读回的分区
+        private int partition;
+        //正在输出的分区的聚合器和它的迭代器
+        private Codec sub;
+        private OpIterator subIterator;
+
+        boolean hasNext() throws DbException, TransactionAbortedException {
+            while (true) {
+                if (subIterator != null) {
+                    if (subIterator.hasNext())
+                        return true;
+                    close();
+                }
+                if (partition >= SpillFile.PARTITIONS)
+                    return false;
+                if (empty(partition)) {
+                    partition++;
+                    continue;
+                }
+                sub = load(partition++);
+                subIterator = sub.iterator();
+            }
+        }
+
+        Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return subIterator.next();
+        }
+
+        void rewind() {
+            close();
+            partition = 0;
+        }
+
+        //关掉正在输出的分区，记下它再次写出的分区数
+        void close() {
+            if (subIterator != null) {
+                repartitioned += sub.getSpilledPartitions();
+                subIterator.close();
+            }
+            sub = null;
+            subIterator = null;
+        }
+    }
+}
@@ -1,15 +1,19 @@
 package simpledb.execution;
 
+import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
 
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
@@ -24,6 +28,13 @@ public class StringAggregator implements Aggregator {
     private Op op;
     private ConcurrentHashMap<Field, GroupCalResult> groupResults;
 
+    //估计的每个分组在内存中占用的字节数（键之外的部分）
+    private static final int GROUP_OVERHEAD = 48;
+    private long memoryBudget = SpilledGroups.DEFAULT_MEMORY_BUDGET;
+    //超出预算后新出现的分组，写出的每个元组为(分组值, count)
+    private final SpilledGroups spilled;
+    private final TupleDesc stateDesc;
+
     public class GroupCalResult {
         private int count = 0;
 
@@ -34,6 +45,10 @@ public class StringAggregator implements Aggregator {
         public int getCount() {
             return count;
         }
+
+        public void merge(GroupCalResult other) {
+            count += other.count;
+        }
     }
 
     /**
@@ -46,6 +61,11 @@ public class StringAggregator implements Aggregator {
      * @throws IllegalArgumentException if what != COUNT
      */
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this(gbfield, gbfieldtype, afield, what, 0);
+    }
+
+    //depth为第几层分区，读回的分区再次超出预算时用下一层的哈希再分
+    private StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what, int depth) {
         if (what != Op.COUNT) {
             throw new IllegalArgumentException("Only COUNT operation is supported for StringAggregator");
         }
@@ -54,6 +74,8 @@ public class StringAggregator implements Aggregator {
         this.afield = afield;
         this.op = what;
         this.groupResults = new ConcurrentHashMap<>();
+        this.spilled = new SpilledGroups(new Codec(), depth);
+        this.stateDesc = new TupleDesc(new Type[]{gbfieldtype == null ? Type.INT_TYPE : gbfieldtype, Type.INT_TYPE});
     }
 
     /**
@@ -69,14 +91,99 @@ public class StringAggregator implements Aggregator {
         }
         GroupCalResult result = groupResults.get(groupByField);
         if (result == null) {
+            if (full()) {
+                spill(groupByField, 1);
+                return;
+            }
             result = new GroupCalResult();
             groupResults.put(groupByField, result);
         }
         result.addValue();
     }
 
+    //把一个分组的部分结果并入：已在内存中的合并，内存已满时写出
+    private void add(Field group, GroupCalResult r) {
+        GroupCalResult result = groupResults.get(group);
+        if (result != null) {
+            result.merge(r);
+        } else if (full()) {
+            spill(group, r.count);
+        } else {
+            groupResults.put(group, r);
+        }
+    }
+
+    //内存中的分组数是否已达到预算；最后一层分区不再写出
+    private boolean full() {
+        if (!spilled.canSpill())
+            return false;
+        int keyLen = gbfieldtype == null ? 0 : gbfieldtype.getLen();
+        return groupResults.size() >= Math.max(1, memoryBudget / (GROUP_OVERHEAD + keyLen));
+    }
+
+    private void spill(Field group, int count) {
+        spilled.write(group, state(group, count));
+    }
+
+    private Tuple state(Field group, int count) {
+        Tuple state = new Tuple(stateDesc);
+        state.setField(0, group);
+        state.setField(1, new IntField(count));
+        return state;
+    }
+
+    //分组状态写成(分组值, count)的元组，读回时并入下一层的聚合器
+    private class Codec implements SpilledGroups.Codec {
+        public SpilledGroups.Codec child(int depth) {
+            StringAggregator sub = new StringAggregator(gbfield, gbfieldtype, afield, op, depth);
+            sub.memoryBudget = memoryBudget;
+            return sub.new Codec();
+        }
+
+        public Tuple state(Field group) {
+            return StringAggregator.this.state(group, groupResults.get(group).count);
+        }
+
+        public void add(Tuple state) {
+            GroupCalResult r = new GroupCalResult();
+            r.count = ((IntField) state.getField(1)).getValue();
+            StringAggregator.this.add(state.getField(0), r);
+        }
+
+        public void forEachGroup(Consumer<Field> action) {
+            groupResults.keySet().forEach(action);
+        }
+
+        public OpIterator iterator() {
+            return StringAggregator.this.iterator();
+        }
+
+        public int getSpilledPartitions() {
+            return StringAggregator.this.getSpilledPartitions();
+        }
+    }
+
+    public void merge(Aggregator other) {
+        StringAggregator o = (StringAggregator) other;
+        for (Map.Entry<Field, GroupCalResult> e : o.groupResults.entrySet()) {
+            add(e.getKey(), e.getValue());
+        }
+        spilled.adopt(o.spilled);
+    }
+
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public int getSpilledPartitions() {
+        return spilled.count();
+    }
+
     /**
-     * Create a OpIterator over group aggregate results.
+     * Create a OpIterator over group aggregate results. The groups kept in
+     * memory come first, then the spilled partitions, each read back and
+     * aggregated in turn. Closing the iterator deletes the spilled
+     * partitions.
      *
      * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
      *         if using group, or a single (aggregateVal) if no grouping. The
@@ -91,8 +198,12 @@ public class StringAggregator implements Aggregator {
 
         private final Map<Field, GroupCalResult> groupResults;
         private Iterator<Map.Entry<Field, GroupCalResult>> iterator;
+        //下一个要输出的内存中的分组
+        private Map.Entry<Field, GroupCalResult> pending;
         private final TupleDesc tupleDesc;
         private final boolean isGrouped;
+        //写出的分组，内存中的分组输出完后逐个分区读回
+        private final SpilledGroups.Reader spilledReader = spilled.reader();
 
         public StringAggregatorIterator(Map<Field, GroupCalResult> groupResults, int gbfield, Type gbfieldtype) {
             this.groupResults = groupResults;
@@ -115,13 +226,28 @@ public class StringAggregator implements Aggregator {
         }
 
         @Override
-        public boolean hasNext(){
-            return iterator.hasNext();
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            return inMemory() || spilledReader.hasNext();
+        }
+
+        //内存中是否还有分组没有输出；跳过留到读回分区时输出的分组
+        private boolean inMemory() {
+            while (pending == null && iterator.hasNext()) {
+                Map.Entry<Field, GroupCalResult> e = iterator.next();
+                if (!spilled.deferred(e.getKey()))
+                    pending = e;
+            }
+            return pending != null;
         }
 
         @Override
-        public Tuple next(){
-            Map.Entry<Field, GroupCalResult> entry = iterator.next();
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            if (!inMemory())
+                return spilledReader.next();
+            Map.Entry<Field, GroupCalResult> entry = pending;
+            pending = null;
             Field groupValue = entry.getKey();
             GroupCalResult result = entry.getValue();
 
@@ -140,6 +266,8 @@ public class StringAggregator implements Aggregator {
         @Override
         public void rewind(){
             iterator = groupResults.entrySet().iterator();
+            pending = null;
+            spilledReader.rewind();
         }
 
         @Override
@@ -149,7 +277,8 @@ public class StringAggregator implements Aggregator {
 
         @Override
         public void close() {
-            // 关闭迭代器时不需要额外操作
+            spilledReader.close();
+            spilled.delete();
         }
     }
 }
\ No newline at end of file
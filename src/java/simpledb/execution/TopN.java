@@ -0,0 +1,151 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * TopN implements ORDER BY ... LIMIT n. Instead of sorting the whole input
+ * like {@link OrderBy}, it keeps only the best n tuples seen so far in a
+ * bounded heap, so it needs memory for n tuples and O(log n) work per input
+ * tuple. Tuples with equal keys are returned in input order, as with OrderBy.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int orderByField;
+    private final String orderByFieldName;
+    private final boolean asc;
+    private final int limit;
+    private List<Tuple> result;
+    private Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the most tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, OpIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.child = child;
+        td = child.getTupleDesc();
+        this.orderByField = orderbyField;
+        this.orderByFieldName = td.getFieldName(orderbyField);
+        this.asc = asc;
+        this.limit = limit;
+    }
+
+    public boolean isASC() {
+        return this.asc;
+    }
+
+    public int getOrderByField() {
+        return this.orderByField;
+    }
+
+    public String getOrderFieldName() {
+        return this.orderByFieldName;
+    }
+
+    /** @return the most tuples this operator returns */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        Comparator<Tuple> cmp = new TupleComparator(orderByField, asc);
+        //堆顶是当前保留的元组中排得最靠后的；键相同时后读到的排在后面
+        PriorityQueue<Entry> heap = new PriorityQueue<>(Math.max(1, limit), (a, b) -> {
+            int c = cmp.compare(b.tuple, a.tuple);
+            return c != 0 ? c : Long.compare(b.seq, a.seq);
+        });
+        long seq = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < limit) {
+                heap.add(new Entry(t, seq));
+            } else if (limit > 0 && cmp.compare(t, heap.peek().tuple) < 0) {
+                //新元组严格排在堆顶之前才替换，键相同的保留先读到的
+                heap.poll();
+                heap.add(new Entry(t, seq));
+            }
+            seq++;
+        }
+        Entry[] entries = heap.toArray(new Entry[0]);
+        Arrays.sort(entries, (a, b) -> {
+            int c = cmp.compare(a.tuple, b.tuple);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        });
+        result = new ArrayList<>(entries.length);
+        for (Entry e : entries) {
+            result.add(e.tuple);
+        }
+        it = result.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        result = null;
+        it = null;
+    }
+
+    public void rewind() {
+        it = result.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the first limit tuples of
+     * the child in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException {
+        if (it != null && it.hasNext()) {
+            return it.next();
+        } else
+            return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+    //堆中的元组和它在输入中的序号，序号用来让排序稳定
+    private static class Entry {
+        final Tuple tuple;
+        final long seq;
+
+        Entry(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+}
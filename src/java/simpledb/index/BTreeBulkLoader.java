@@ -0,0 +1,335 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * BTreeBulkLoader builds a B+ tree bottom-up from tuples given in ascending
+ * order of the key field, in a single pass over them. Leaf pages are filled
+ * to a fill factor and each new page is numbered as it is started. An
+ * entry for the page is added to the level above at the same time, so the
+ * internal levels grow along with the leaves. A page is written as soon as
+ * the page after it on the same level is started. At that point its
+ * parent and siblings are known. Only the last two pages of each level are
+ * held in memory.
+ * <p>
+ * When the input ends, the last page of each level is balanced with the
+ * page before it, or merged into it, so that every page but the root is at
+ * least half full. Pages already written whose parent changes because of
+ * this get their parent pointer rewritten. That is at most half a page of
+ * children per level. A merge may leave a few page numbers unused.
+ * <p>
+ * The pages are written straight to the file, bypassing the BufferPool, so
+ * the file must be empty and not in use by any transaction.
+ *
+ * @see BTreeFile#bulkLoad
+ */
+public class BTreeBulkLoader {
+
+	private final BTreeFile f;
+	private final int keyField;
+	private final Type[] types;
+	private final int leafMax, leafMin, leafCap;
+	private final int internalMax, internalMin, internalCap;
+	//levels.get(0)是叶子层
+	private final List<Level> levels = new ArrayList<>();
+	private int nextPageNo = 1;
+	private Field lastKey;
+	private boolean finished;
+
+	/**
+	 * @param f - the empty B+ tree file to load
+	 * @param fillFactor - the fraction of the slots of each page to fill,
+	 *                     between 0.5 and 1; pages left with free slots take
+	 *                     later inserts without splitting
+	 * @throws DbException if the file is not empty
+	 */
+	public BTreeBulkLoader(BTreeFile f, double fillFactor) throws DbException {
+		if(fillFactor < 0.5 || fillFactor > 1)
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1: " + fillFactor);
+		if(f.getFile().length() > 0)
+			throw new DbException("bulk load into a B+ tree file that is not empty");
+		this.f = f;
+		this.keyField = f.keyField();
+		TupleDesc td = f.getTupleDesc();
+		this.types = new Type[td.numFields()];
+		for(int i = 0; i < types.length; i++)
+			types[i] = td.getFieldType(i);
+
+		// the same capacities as BTreeLeafPage.getMaxTuples and BTreeInternalPage.getMaxEntries
+		int pageBits = BufferPool.getPageSize() * 8;
+		leafMax = (pageBits - 3 * BTreePage.INDEX_SIZE * 8) / (td.getSize() * 8 + 1);
+		int entryBits = types[keyField].getLen() * 8 + BTreePage.INDEX_SIZE * 8 + 1;
+		internalMax = (pageBits - (2 * BTreePage.INDEX_SIZE * 8 + 8 + 1)) / entryBits;
+		leafMin = leafMax / 2;
+		internalMin = internalMax / 2;
+		leafCap = Math.max(Math.max(1, leafMin), (int) (leafMax * fillFactor));
+		internalCap = Math.max(Math.max(1, internalMin), (int) (internalMax * fillFactor));
+	}
+
+	/**
+	 * Add the next tuple. Tuples must be added in ascending order of the key
+	 * field.
+	 *
+	 * @throws DbException if t is out of order, or finish() has been called
+	 */
+	public void add(Tuple t) throws DbException, IOException {
+		if(finished)
+			throw new DbException("bulk load already finished");
+		Field key = t.getField(keyField);
+		if(lastKey != null && key.compare(Op.LESS_THAN, lastKey))
+			throw new DbException("bulk load input is not in key order: " + key + " after " + lastKey);
+		lastKey = key;
+		Level leaves = level(0);
+		if(leaves.cur == null || leaves.cur.tuples.size() >= leafCap)
+			start(0, key);
+		leaves.cur.tuples.add(t);
+	}
+
+	/**
+	 * Write out the pages still in memory and the root pointer page. No
+	 * tuples can be added afterwards.
+	 */
+	public void finish() throws DbException, IOException {
+		if(finished)
+			return;
+		finished = true;
+		if(levels.isEmpty()) {
+			// the same as a new file: an empty root leaf
+			f.writePageData(BTreeRootPtrPage.getId(f.getId()), BTreeFileEncoder.convertToRootPtrPage(1, BTreePageId.LEAF, 0));
+			f.writePageData(new BTreePageId(f.getId(), 1, BTreePageId.LEAF), BTreeLeafPage.createEmptyPageData());
+			return;
+		}
+		//自底向上平衡每层最后两页，合并时可能删掉上一层的页
+		for(int i = 0; i + 1 < levels.size(); i++)
+			balance(i);
+		//只有一个孩子的根去掉
+		while(levels.size() > 1 && top().children.size() == 1) {
+			levels.remove(levels.size() - 1);
+			top().parent = null;
+		}
+		for(Level l : levels) {
+			if(l.prev != null)
+				write(l.prev);
+			write(l.cur);
+		}
+		Node root = top();
+		byte[] rootPtr = BTreeFileEncoder.convertToRootPtrPage(root.pageNo,
+				root.isLeaf() ? BTreePageId.LEAF : BTreePageId.INTERNAL, 0);
+		f.writePageData(BTreeRootPtrPage.getId(f.getId()), rootPtr);
+	}
+
+	private Level level(int i) {
+		while(levels.size() <= i)
+			levels.add(new Level());
+		return levels.get(i);
+	}
+
+	private Node top() {
+		return levels.get(levels.size() - 1).cur;
+	}
+
+	//在第i层开始一个新页，它在上一层的键是lowKey
+	private Node start(int i, Field lowKey) throws IOException {
+		Node n = new Node(nextPageNo++, i == 0, lowKey);
+		Level l = level(i);
+		if(l.cur != null) {
+			//新页的前一页已经满了，再前一页的父结点和兄弟都已确定，可以写出
+			if(l.prev != null)
+				write(l.prev);
+			l.prev = l.cur;
+			if(n.isLeaf()) {
+				n.left = l.prev.pageNo;
+				l.prev.right = n.pageNo;
+			}
+			//本层有了第二页才需要上一层
+			if(l.prev.parent == null)
+				addChild(i + 1, l.prev);
+			l.cur = n;
+			addChild(i + 1, n);
+		}
+		else {
+			l.cur = n;
+		}
+		return n;
+	}
+
+	private void addChild(int i, Node child) throws IOException {
+		Level l = level(i);
+		Node p = l.cur;
+		if(p == null || p.keys.size() >= internalCap)
+			p = start(i, child.lowKey);
+		else if(!p.children.isEmpty())
+			p.keys.add(child.lowKey);
+		p.children.add(child);
+		child.parent = p;
+	}
+
+	//每层最后一页不到半满时，与前一页一起放得下就合并，否则在两页间平分
+	private void balance(int i) throws IOException {
+		Level l = levels.get(i);
+		Node prev = l.prev, cur = l.cur;
+		if(prev == null)
+			return;
+		if(cur.isLeaf()) {
+			if(cur.tuples.size() >= leafMin)
+				return;
+			int total = prev.tuples.size() + cur.tuples.size();
+			if(total <= leafMax) {
+				prev.tuples.addAll(cur.tuples);
+				prev.right = 0;
+				drop(i);
+			}
+			else {
+				List<Tuple> all = new ArrayList<>(prev.tuples);
+				all.addAll(cur.tuples);
+				int split = total / 2;
+				prev.tuples = new ArrayList<>(all.subList(0, split));
+				cur.tuples = new ArrayList<>(all.subList(split, total));
+				setLowKey(cur, cur.tuples.get(0).getField(keyField));
+			}
+			return;
+		}
+		if(cur.keys.size() >= internalMin)
+			return;
+		//两页的键连起来，中间是cur在上一层的键
+		List<Node> children = new ArrayList<>(prev.children);
+		children.addAll(cur.children);
+		List<Field> keys = new ArrayList<>(prev.keys);
+		keys.add(cur.lowKey);
+		keys.addAll(cur.keys);
+		if(keys.size() <= internalMax) {
+			prev.children = children;
+			prev.keys = keys;
+			for(Node c : cur.children)
+				reparent(c, prev);
+			drop(i);
+		}
+		else {
+			int split = keys.size() / 2 + 1;
+			//从prev移到cur的孩子
+			List<Node> moved = new ArrayList<>(children.subList(split, prev.children.size()));
+			prev.children = new ArrayList<>(children.subList(0, split));
+			prev.keys = new ArrayList<>(keys.subList(0, split - 1));
+			cur.children = new ArrayList<>(children.subList(split, children.size()));
+			cur.keys = new ArrayList<>(keys.subList(split, keys.size()));
+			for(Node c : moved)
+				reparent(c, cur);
+			setLowKey(cur, keys.get(split - 1));
+		}
+	}
+
+	//去掉第i层的最后一页，它的内容已经并入前一页
+	private void drop(int i) {
+		Level l = levels.get(i);
+		Node gone = l.cur;
+		l.cur = l.prev;
+		l.prev = null;
+		if(i + 1 < levels.size())
+			removeLastChild(i + 1, gone);
+	}
+
+	private void removeLastChild(int i, Node child) {
+		Node p = child.parent;
+		p.children.remove(p.children.size() - 1);
+		if(!p.keys.isEmpty())
+			p.keys.remove(p.keys.size() - 1);
+		else if(p.children.isEmpty())
+			drop(i);
+	}
+
+	//改变一页在上一层的键：它不是父结点的第一个孩子时就是父结点中的键，否则是父结点在更上一层的键
+	private void setLowKey(Node n, Field key) {
+		n.lowKey = key;
+		Node p = n.parent;
+		if(p == null)
+			return;
+		int i = p.children.indexOf(n);
+		if(i > 0)
+			p.keys.set(i - 1, key);
+		else
+			setLowKey(p, key);
+	}
+
+	private void reparent(Node child, Node parent) throws IOException {
+		child.parent = parent;
+		if(child.written) {
+			// the parent pointer is the first int of both leaf and internal pages
+			f.writePageData(child.id(f.getId()), ByteBuffer.allocate(BTreePage.INDEX_SIZE).putInt(parent.pageNo).array());
+		}
+	}
+
+	private void write(Node n) throws IOException {
+		int parent = n.parent == null ? 0 : n.parent.pageNo;
+		int npagebytes = BufferPool.getPageSize();
+		byte[] data;
+		if(n.isLeaf()) {
+			data = BTreeFileEncoder.convertToLeafPage(n.tuples, npagebytes, types.length, types, keyField);
+			ByteBuffer.wrap(data).putInt(0, parent).putInt(4, n.left).putInt(8, n.right);
+			n.tuples = null;
+		}
+		else {
+			List<BTreeEntry> entries = new ArrayList<>(n.keys.size());
+			for(int i = 0; i < n.keys.size(); i++)
+				entries.add(new BTreeEntry(n.keys.get(i), n.children.get(i).id(f.getId()),
+						n.children.get(i + 1).id(f.getId())));
+			int childCategory = n.children.get(0).isLeaf() ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			data = BTreeFileEncoder.convertToInternalPage(entries, npagebytes, types[keyField], childCategory);
+			ByteBuffer.wrap(data).putInt(0, parent);
+			n.children = null;
+			n.keys = null;
+		}
+		f.writePageData(n.id(f.getId()), data);
+		n.written = true;
+	}
+
+	//每层只有最后两页还在内存中
+	private static class Level {
+		Node prev, cur;
+	}
+
+	private static class Node {
+		final int pageNo;
+		final boolean leaf;
+		//这一页与前一页的分界键，在上一层中；本层第一页为null
+		Field lowKey;
+		Node parent;
+		boolean written;
+		// leaf pages
+		List<Tuple> tuples;
+		int left, right;
+		// internal pages: keys.get(i) separates children.get(i) and children.get(i + 1)
+		List<Node> children;
+		List<Field> keys;
+
+		Node(int pageNo, boolean leaf, Field lowKey) {
+			this.pageNo = pageNo;
+			this.leaf = leaf;
+			this.lowKey = lowKey;
+			if(leaf) {
+				tuples = new ArrayList<>();
+			}
+			else {
+				children = new ArrayList<>();
+				keys = new ArrayList<>();
+			}
+		}
+
+		boolean isLeaf() {
+			return leaf;
+		}
+
+		BTreePageId id(int tableid) {
+			return new BTreePageId(tableid, pageNo, isLeaf() ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+		}
+	}
+}
@@ -1,12 +1,20 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.ExternalSort;
 import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
@@ -33,6 +41,12 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	// kept open for the life of the file; positional reads and writes need no seek
+	private volatile FileChannel channel;
+	// cached page count, -1 until the file size has been read
+	private final AtomicInteger pageCount = new AtomicInteger(-1);
+	// the tree this one was rebuilt into, or null; writes to a retired tree would be lost
+	private volatile BTreeFile rebuiltInto;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -78,6 +92,45 @@ public class BTreeFile implements DbFile {
 		return td;
 	}
 
+	/**
+	 * Opens the channel to the backing file on first use and returns it
+	 */
+	private FileChannel channel() throws IOException {
+		FileChannel c = channel;
+		if (c == null) {
+			synchronized (this) {
+				c = channel;
+				if (c == null) {
+					c = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+							StandardOpenOption.READ, StandardOpenOption.WRITE);
+					channel = c;
+				}
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Returns the offset of the given page in the backing file
+	 */
+	private static long pageOffset(BTreePageId id) {
+		if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return 0;
+		}
+		return BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * Writes data at the given offset of the backing file
+	 */
+	private void write(byte[] data, long offset) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		FileChannel c = channel();
+		while (buf.hasRemaining()) {
+			c.write(buf, offset + buf.position());
+		}
+	}
+
 	/**
 	 * Read a page from the file on disk. This should not be called directly
 	 * but should be called from the BufferPool via getPage()
@@ -87,50 +140,35 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		int size = id.pgcateg() == BTreePageId.ROOT_PTR ? BTreeRootPtrPage.getPageSize() : BufferPool.getPageSize();
+		byte[] pageBuf = new byte[size];
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(pageBuf);
+			FileChannel c = channel();
+			long offset = pageOffset(id);
+			while (buf.hasRemaining()) {
+				if (c.read(buf, offset + buf.position()) < 0) {
+					if (buf.position() == 0) {
+						throw new IllegalArgumentException("Read past end of table");
+					}
+					throw new IllegalArgumentException("Unable to read "
+							+ size + " bytes from BTreeFile");
+				}
+			}
+			Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				return new BTreeRootPtrPage(id, pageBuf);
+			} else if (id.pgcateg() == BTreePageId.INTERNAL) {
+				return new BTreeInternalPage(id, pageBuf, keyField);
+			} else if (id.pgcateg() == BTreePageId.LEAF) {
+				return new BTreeLeafPage(id, pageBuf, keyField);
+			} else { // id.pgcateg() == BTreePageId.HEADER
+				return new BTreeHeaderPage(id, pageBuf);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -139,27 +177,54 @@ public class BTreeFile implements DbFile {
 	 * @param page - the page to write to disk
 	 */
 	public void writePage(Page page) throws IOException {
-		BTreePageId id = (BTreePageId) page.getId();
-		
-		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
-		}
-		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+		writePageData((BTreePageId) page.getId(), page.getPageData());
+	}
+
+	/**
+	 * Write data at the start of the given page, bypassing the BufferPool.
+	 * Used by {@link BTreeBulkLoader} to write the pages of a file no
+	 * transaction is using yet; data may be shorter than a page.
+	 */
+	void writePageData(BTreePageId id, byte[] data) throws IOException {
+		write(data, pageOffset(id));
+		if (id.pgcateg() != BTreePageId.ROOT_PTR) {
+			cachedNumPages();
+			pageCount.accumulateAndGet(id.getPageNumber(), Math::max);
 		}
 	}
-	
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
+	 * Re-reads the size of the open file, so pages written to the file
+	 * without going through this BTreeFile are counted as well.
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			int filePages = (int) ((channel().size() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+			return pageCount.accumulateAndGet(filePages, Math::max);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the cached page count, reading the file size the first time
+	 */
+	private int cachedNumPages() {
+		int n = pageCount.get();
+		return n >= 0 ? n : numPages();
+	}
+
+	/**
+	 * Appends an empty page to the end of the file and returns its page number
+	 */
+	private synchronized int appendEmptyPage() throws IOException {
+		int pageNo = cachedNumPages() + 1;
+		write(BTreeInternalPage.createEmptyPageData(),
+				BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize());
+		pageCount.accumulateAndGet(pageNo, Math::max);
+		return pageNo;
 	}
 
 	/**
@@ -169,6 +234,107 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/**
+	 * Estimates how many pages a lookup reads on its way from the root down to a
+	 * leaf, assuming full internal pages. Used by the optimizer to cost index probes.
+	 */
+	public int estimateHeight() {
+		int entrybytes = td.getFieldType(keyField).getLen() + BTreeInternalPage.INDEX_SIZE;
+		int fanout = Math.max(2, BufferPool.getPageSize() / entrybytes);
+		int height = 1;
+		// each level of internal pages multiplies the number of reachable leaves by the fanout
+		for (long reach = 1; reach < numPages(); reach *= fanout)
+			height++;
+		return height;
+	}
+
+	/**
+	 * Load tuples into this empty B+ tree bottom-up with a
+	 * {@link BTreeBulkLoader}, instead of inserting them one at a time. Input
+	 * that is not already in key order is first sorted with an
+	 * {@link ExternalSort}. The file must not be in use by any transaction.
+	 *
+	 * @param tuples - the tuples to load; opened and closed by this method
+	 * @param sorted - true if tuples are already in ascending order of the key field
+	 * @param fillFactor - the fraction of the slots of each page to fill, between 0.5 and 1
+	 * @throws DbException if this file is not empty, or sorted input is out of order
+	 */
+	public void bulkLoad(OpIterator tuples, boolean sorted, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeBulkLoader loader = new BTreeBulkLoader(this, fillFactor);
+		tuples.open();
+		try {
+			if(sorted) {
+				while(tuples.hasNext())
+					loader.add(tuples.next());
+			}
+			else {
+				ExternalSort sort = new ExternalSort(td, new BTreeFileEncoder.TupleComparator(keyField),
+						ExternalSort.DEFAULT_MEMORY_BUDGET);
+				try {
+					while(tuples.hasNext())
+						sort.add(tuples.next());
+					ExternalSort.Merge merge = sort.iterator();
+					for(Tuple t = merge.next(); t != null; t = merge.next())
+						loader.add(t);
+					merge.close();
+				} finally {
+					sort.close();
+				}
+			}
+		} finally {
+			tuples.close();
+		}
+		loader.finish();
+	}
+
+	/**
+	 * Rebuild this B+ tree online: bulk load its tuples, read in key order
+	 * from its leaves, into a new B+ tree in the given file and register the
+	 * new tree in the Catalog under this table's name. Queries planned from
+	 * then on use the new tree, while transactions already reading this one
+	 * can finish on it. The leaves are read with tid, so writers wait for
+	 * the rebuild but readers do not.
+	 * <p>
+	 * This tree is retired once the new one is registered. A writer that
+	 * still reaches it, for instance because it was planned before the swap
+	 * or was waiting on tid's locks, gets a DbException instead of writing
+	 * to the retired tree, and its transaction has to be rerun against the
+	 * new tree.
+	 *
+	 * @param tid - the transaction reading this B+ tree
+	 * @param file - an empty or missing file for the new B+ tree
+	 * @param fillFactor - the fraction of the slots of each page to fill, between 0.5 and 1
+	 * @return the new B+ tree
+	 */
+	public BTreeFile rebuild(TransactionId tid, File file, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeFile rebuilt = new BTreeFile(file, keyField, td);
+		BTreeBulkLoader loader = new BTreeBulkLoader(rebuilt, fillFactor);
+		DbFileIterator it = iterator(tid);
+		it.open();
+		try {
+			while(it.hasNext())
+				loader.add(it.next());
+		} finally {
+			it.close();
+		}
+		loader.finish();
+		// retire this tree while tid still holds its read locks, so every writer that gets past them sees it
+		rebuiltInto = rebuilt;
+		Catalog catalog = Database.getCatalog();
+		catalog.addTable(rebuilt, catalog.getTableName(tableid), catalog.getPrimaryKey(tableid));
+		return rebuilt;
+	}
+
+	// 写者拿到叶子的写锁之后再检查：重建的读锁一直持有到提交，之后能拿到写锁的写者一定能看到rebuiltInto
+	private void checkNotRetired() throws DbException {
+		BTreeFile into = rebuiltInto;
+		if(into != null)
+			throw new DbException("B+ tree " + f.getName() + " was rebuilt into " + into.getFile().getName()
+					+ "; rerun the transaction on the new tree");
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -189,35 +355,18 @@ public class BTreeFile implements DbFile {
 									   Field f)
 			throws DbException, TransactionAbortedException {
 		// some code goes here
-		Field field = null;
-		BTreeEntry bTreeEntry = null;
-
 		//f为空的情况要返回最左叶子结点
-
 		switch (pid.pgcateg())
 		{
-//			case BTreePageId.ROOT_PTR:
-				//不必找到叶子结点对应的值为f的具体的元组，只需要找到f在的页即可
 			case BTreePageId.LEAF:
-				BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-				return leaf;
+				return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
 			default:
 				BTreeInternalPage bTreeInternalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, perm);
-				Iterator<BTreeEntry> it = bTreeInternalPage.iterator();
-				while (it.hasNext()) {
-					bTreeEntry = (BTreeEntry) it.next();
-					field = bTreeEntry.getKey();
-					//文件为空，或者小于等于当前值时，要查找的内容在左树上
-					if(f == null || f.compare(Op.LESS_THAN_OR_EQ,field)) {
-						return findLeafPage(tid, dirtypages, bTreeEntry.getLeftChild(), perm, f);
-					}
-				}
+				//在页内二分查找：第一个大于等于f的键的左孩子，f大于所有键时是最后一个条目的右孩子
+				return findLeafPage(tid, dirtypages, bTreeInternalPage.findChild(f), perm, f);
 		}
-		//如果值大于当前结点的最后一个值则在当前条目的右树中找
-		return findLeafPage(tid, dirtypages, bTreeEntry.getRightChild(), perm, f);
-
 	}
-	
+
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
@@ -235,6 +384,55 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
 	}
 
+	/**
+	 * Optimistic descent for an insert. Crabs down from the root pointer
+	 * page: each page is locked before the lock on its parent is released,
+	 * internal pages only READ_ONLY and for as long as the step to their
+	 * child takes, and only the leaf is locked READ_WRITE. Locks the
+	 * transaction already held before the descent are kept.
+	 * <p>
+	 * Pages are locked top-down and the internal pages are released at once,
+	 * so concurrent inserts into different leaves do not wait for each other,
+	 * while the lock kept on the leaf until commit keeps other transactions
+	 * from reading or writing the keys on it.
+	 *
+	 * @param tid - the transaction id
+	 * @param f - the key of the tuple to insert
+	 * @return the leaf page the tuple belongs to, locked READ_WRITE, or null
+	 * if the tree has no root yet or the leaf is full, in which case the
+	 * insert must split pages and start over pessimistically
+	 */
+	private BTreeLeafPage findInsertableLeafPage(TransactionId tid, Field f)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		createRootIfEmpty();
+		PageId parent = BTreeRootPtrPage.getId(tableid);
+		boolean parentHeld = bp.holdsLock(tid, parent);
+		BTreePageId pid = ((BTreeRootPtrPage) bp.getPage(tid, parent, Permissions.READ_ONLY)).getRootId();
+		while(pid != null) {
+			boolean leaf = pid.pgcateg() == BTreePageId.LEAF;
+			boolean held = bp.holdsLock(tid, pid);
+			Page page = bp.getPage(tid, pid, leaf ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+			//先锁住孩子再放开父结点，这样父结点指向的孩子在此期间不会被别的事务分裂或合并
+			if(!parentHeld)
+				bp.unsafeReleasePage(tid, parent);
+			if(leaf) {
+				BTreeLeafPage leafPage = (BTreeLeafPage) page;
+				if(leafPage.getNumEmptySlots() > 0)
+					return leafPage;
+				if(!held)
+					bp.unsafeReleasePage(tid, pid);
+				return null;
+			}
+			parent = pid;
+			parentHeld = held;
+			pid = ((BTreeInternalPage) page).findChild(f);
+		}
+		if(!parentHeld)
+			bp.unsafeReleasePage(tid, parent);
+		return null;
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -290,8 +488,10 @@ public class BTreeFile implements DbFile {
 
 		//更新父节点的条目
 		BTreeInternalPage parentinternal = getParentWithEmptySlots(tid,dirtypages,page.getParentId(),field);
-		//叶子结点交给父节点的Field是新页的第一项的Field
-		BTreeEntry e = new BTreeEntry(newbTreeLeafPage.iterator().next().getField(newbTreeLeafPage.keyField),page.getId(),newbTreeLeafPage.getId());
+		//叶子结点交给父节点的Field是分开两页的最短的键
+		Field separator = separator(page.reverseIterator().next().getField(page.keyField),
+				newbTreeLeafPage.iterator().next().getField(newbTreeLeafPage.keyField));
+		BTreeEntry e = new BTreeEntry(separator,page.getId(),newbTreeLeafPage.getId());
 		parentinternal.insertEntry(e);
 		newbTreeLeafPage.setParentId(parentinternal.getId());
 
@@ -300,14 +500,32 @@ public class BTreeFile implements DbFile {
 		dirtypages.put(page.getId(),page);
 		dirtypages.put(newbTreeLeafPage.getId(),newbTreeLeafPage);
 
-		//判断返回哪一个页面
-		if(field.compare(Op.LESS_THAN_OR_EQ,newbTreeLeafPage.iterator().next().getField(newbTreeLeafPage.keyField)))
+		//判断返回哪一个页面：与findChild一样，不大于父节点中的键时在左边
+		if(field.compare(Op.LESS_THAN_OR_EQ,separator))
 		{
 			return page;
 		}
 		return newbTreeLeafPage;
 	}
 	
+	/**
+	 * The key to put in the parent of two adjacent leaves, given the last key
+	 * of the left leaf and the first key of the right leaf. For strings this
+	 * is the shortest prefix of rightFirst that is greater than leftLast, so
+	 * that compressed internal pages hold short keys; otherwise it is
+	 * rightFirst.
+	 */
+	static Field separator(Field leftLast, Field rightFirst) {
+		if(!(rightFirst instanceof StringField) || !leftLast.compare(Op.LESS_THAN, rightFirst))
+			return rightFirst;
+		String l = ((StringField) leftLast).getValue();
+		String r = ((StringField) rightFirst).getValue();
+		int i = 0;
+		while(i < l.length() && l.charAt(i) == r.charAt(i))
+			i++;
+		return new StringField(r.substring(0, i + 1), Type.STRING_LEN);
+	}
+
 	/**
 	 * Split an internal page to make room for new entries and recursively split its parent page
 	 * as needed to accommodate a new entry. The new entry for the parent should have a key matching 
@@ -336,17 +554,10 @@ public class BTreeFile implements DbFile {
 		System.out.println("splitInternalPage");
 		// some code goes here
 		int n = page.getNumEntries();
-		int index = n / 2;
 		//定于一个新的内部节点
 		BTreeInternalPage newbtreeinternalpage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 
-		//设置新页面的父亲和旧页面是兄弟
-		newbtreeinternalpage.setParentId(page.getId());
-		updateParentPointers(tid, dirtypages, newbtreeinternalpage);
 
-		int fieldindex = 0;
-		boolean flag = false;
-		int i = 1;
 		int pagenumentry = 0;
 		BTreeEntry uppush = null;
 		BTreeInternalPageIterator it = new BTreeInternalPageIterator(page);
@@ -363,31 +574,25 @@ public class BTreeFile implements DbFile {
 				page.deleteKeyAndRightChild(entry);
 				uppush = entry;
 			}
-			//这一部分是确定要插入的部分的下标的，可以去掉，比较臃肿
-			if (entry.getKey().compare(Op.GREATER_THAN, field) && !flag) {
-				flag = true;
-				fieldindex = i;
-				i++;
-			}
-			i++;
-		}
-		if (!flag) {
-			fieldindex = i;
 		}
+		//移到新页的孩子的父指针指向新页
+		updateParentPointers(tid, dirtypages, newbtreeinternalpage);
 
 		//更新父节点的条目
 		BTreeInternalPage parentinternal = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field);
 		uppush.setLeftChild(page.getId());
 		uppush.setRightChild(newbtreeinternalpage.getId());
 		parentinternal.insertEntry(uppush);
+		//新页面和旧页面是兄弟，父亲相同
+		newbtreeinternalpage.setParentId(parentinternal.getId());
 
 		//将脏页加入脏页列表
 		dirtypages.put(parentinternal.getId(), parentinternal);
 		dirtypages.put(page.getId(), page);
 		dirtypages.put(newbtreeinternalpage.getId(), newbtreeinternalpage);
 
-		//判断返回哪一个页面
-		if (fieldindex <= index) {
+		//判断返回哪一个页面：与findChild一样，等于提上去的键时在左边
+		if (field.compare(Op.LESS_THAN_OR_EQ, uppush.getKey())) {
 			return page;
 		}
 		return newbtreeinternalpage;
@@ -540,6 +745,16 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
+		//先乐观地插入：只锁住叶子，叶子放得下时不需要动上面的结点
+		BTreeLeafPage leaf = findInsertableLeafPage(tid, t.getField(keyField));
+		if(leaf != null) {
+			checkNotRetired();
+			leaf.insertTuple(t);
+			dirtypages.put(leaf.getId(), leaf);
+			return new ArrayList<>(dirtypages.values());
+		}
+
+		//叶子要分裂，分裂会向上传播，从根开始悲观地重来
 		// get a read lock on the root pointer page and use it to locate the root page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
@@ -553,6 +768,7 @@ public class BTreeFile implements DbFile {
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
 		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		checkNotRetired();
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
@@ -722,16 +938,11 @@ public class BTreeFile implements DbFile {
 
 		}
 
-		//更新父节点的条目，是找page和兄弟靠右的结点的第一个元组的值当作条目的值
-		if(isRightSibling)
-		{
-			iterator = sibling.iterator();
-			entry.setKey(iterator.next().getField(sibling.keyField));
-		}
-		else
-		{
-			entry.setKey(page.getTuple(0).getField(page.keyField));
-		}
+		//更新父节点的条目，是分开page和兄弟的最短的键
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(separator(left.reverseIterator().next().getField(left.keyField),
+				right.iterator().next().getField(right.keyField)));
 		parent.updateEntry(entry);
 	}
 
@@ -1116,6 +1327,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+		checkNotRetired();
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
@@ -1140,23 +1352,28 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createRootIfEmpty();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 */
+	private void createRootIfEmpty() throws IOException {
+		if(cachedNumPages() == 0) {
+			synchronized(this) {
+				if(channel().size() == 0) {
+					// create the root pointer page and the root page
+					write(BTreeRootPtrPage.createEmptyPageData(BTreeInternalPage.canCompress(td, keyField)), 0);
+					write(BTreeLeafPage.createEmptyPageData(), BTreeRootPtrPage.getPageSize());
+					pageCount.set(1);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -1203,15 +1420,8 @@ public class BTreeFile implements DbFile {
 		// at this point if headerId is null, either there are no header pages 
 		// or there are no free slots
 		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
-			}
+			// create the new page
+			emptyPageNo = appendEmptyPage();
 		}
 
 		return emptyPageNo; 
@@ -1240,10 +1450,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		//新的内部页与根指针页上记录的格式一致
+		if(pgcateg == BTreePageId.INTERNAL && getRootPtrPage(tid, dirtypages).compressedKeys())
+			write(BTreeInternalPage.createEmptyCompressedPageData(), pageOffset(newPageId));
+		else
+			write(BTreePage.createEmptyPageData(), pageOffset(newPageId));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1352,6 +1563,27 @@ public class BTreeFile implements DbFile {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * get the tuples whose keys lie in a range, reading only the leaf pages that
+	 * hold them. The search starts at the first key satisfying ipred and stops at
+	 * the first key that does not satisfy upper.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the lower end of the range: an =, &gt; or &gt;= predicate
+	 * @param upper - the upper end of the range: a &lt; or &lt;= predicate, or null
+	 * @return an iterator for the tuples in the range
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred, IndexPredicate upper) {
+		if(ipred.getOp() != Op.EQUALS && ipred.getOp() != Op.GREATER_THAN
+				&& ipred.getOp() != Op.GREATER_THAN_OR_EQ) {
+			throw new IllegalArgumentException("not a lower bound: " + ipred.getOp());
+		}
+		if(upper != null && upper.getOp() != Op.LESS_THAN && upper.getOp() != Op.LESS_THAN_OR_EQ) {
+			throw new IllegalArgumentException("not an upper bound: " + upper.getOp());
+		}
+		return new BTreeSearchIterator(this, tid, ipred, upper);
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
 	 * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1364,6 +1596,28 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Read ahead up to count leaf pages along the right sibling pointers,
+	 * starting at the given leaf. The next sibling is only known once a leaf
+	 * has been read, so each prefetched leaf starts the prefetch of the one
+	 * after it. Leaves already in the buffer pool are walked without being
+	 * read again, so a scan can call this once per leaf to keep the window
+	 * full.
+	 *
+	 * @param pid - the first leaf to read ahead, or null
+	 * @param count - the number of leaves to read ahead
+	 */
+	static void readAhead(BTreePageId pid, int count) {
+		if(pid == null || count <= 0) {
+			return;
+		}
+		Database.getBufferPool().prefetch(pid).thenAccept(page -> {
+			if(page instanceof BTreeLeafPage) {
+				readAhead(((BTreeLeafPage) page).getRightSiblingId(), count - 1);
+			}
+		});
+	}
+
 }
 
 /**
@@ -1417,6 +1671,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				BTreeFile.readAhead(curp.getRightSiblingId(), Database.getBufferPool().getPrefetchWindow());
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1458,6 +1713,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	final TransactionId tid;
 	final BTreeFile f;
 	final IndexPredicate ipred;
+	final IndexPredicate upper;
 
 	/**
 	 * Constructor for this iterator
@@ -1466,9 +1722,21 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * @param ipred - the predicate to filter on
 	 */
 	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this(f, tid, ipred, null);
+	}
+
+	/**
+	 * Constructor for an iterator over a range of keys
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on
+	 * @param upper - a &lt; or &lt;= predicate ending the range, or null
+	 */
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred, IndexPredicate upper) {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		this.upper = upper;
 	}
 
 	/**
@@ -1482,11 +1750,13 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
 			curp = f.findLeafPage(tid, root, ipred.getField());
+			//从叶子中第一个不小于查找键的元组开始，跳过前面不可能满足谓词的元组
+			it = curp.iterator(ipred.getField());
 		}
 		else {
 			curp = f.findLeafPage(tid, root, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1502,6 +1772,10 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
+				if(upper != null && !t.getField(f.keyField()).compare(upper.getOp(), upper.getField())) {
+					//超过了范围的上界，后面的键更大
+					return null;
+				}
 				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
@@ -1526,6 +1800,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				// scans bounded on the right would read past their last leaf
+				if(upper == null && ipred.getOp() != Op.EQUALS && ipred.getOp() != Op.LESS_THAN
+						&& ipred.getOp() != Op.LESS_THAN_OR_EQ) {
+					BTreeFile.readAhead(curp.getRightSiblingId(), Database.getBufferPool().getPrefetchWindow());
+				}
 				it = curp.iterator();
 			}
 		}
@@ -13,23 +13,45 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
+import simpledb.storage.TupleDesc;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Pages of files keyed on a string may instead be compressed, see
+ * {@link #isCompressed()}: each key is stored front coded, as the length of
+ * the prefix it shares with the key before it and the rest of its bytes,
+ * instead of in a fixed {@link Type#getLen()} bytes. Such a page has room for
+ * many more entries, and is full when its keys fill the bytes left for them,
+ * or all of its slots are used.
  *
  * @see BTreeFile
  * @see BufferPool
  *
  */
 public class BTreeInternalPage extends BTreePage {
+	// flag in the child category byte of a compressed page
+	static final int COMPRESSED = 0x80;
+	// bytes of key budgeted for each entry of a compressed page
+	private static final int COMPRESSED_KEY_BUDGET = 16;
+	// the most bytes a key can take on a compressed page: shared length, suffix length, suffix
+	private static final int MAX_KEY_COST = 2 + Type.STRING_LEN;
+	// bytes kept free on a compressed page that is not full: room to insert any key, then change one
+	private static final int RESERVED_BYTES = 3 * MAX_KEY_COST;
+
 	private final byte[] header;
 	private final Field[] keys;
 	private final int[] children;
+	private final boolean compressed;
 	private final int numSlots;
 	
 	private int childCategory; // either leaf or internal
 
+	//按顺序排列的已使用槽号，供findChild二分查找；槽的使用情况改变时置为null，下次查找时重建
+	private volatile int[] usedSlots;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -47,7 +69,7 @@ public class BTreeInternalPage extends BTreePage {
 //		System.out.println(depth <= 0);
 //		System.out.println(getNumEntries());
 //		System.out.println( getMaxEntries() / 2);
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        assert !checkOccupancy || depth <= 0 || (getNumEmptySlots() <= getMaxEntries() - getMaxEntries() / 2);
 	}
 	
 	/**
@@ -66,6 +88,12 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * If the high bit of the child category byte is set, the page is
+	 * compressed: the child pointers follow the header, and then the used
+	 * key slots in order, each as one byte for the length of the prefix it
+	 * shares with the key before it, one byte for the length of the rest of
+	 * the key, and the rest of the key.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -76,6 +104,8 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
+		this.compressed = (data[INDEX_SIZE] & COMPRESSED) != 0
+				&& td.getFieldType(keyField) == Type.STRING_TYPE;
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -88,13 +118,22 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// read the child page category
-		childCategory = dis.readByte();
+		childCategory = dis.readUnsignedByte() & ~COMPRESSED;
 
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
+		if (compressed) {
+			children = new int[numSlots];
+			keys = new Field[numSlots];
+			readCompressed(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
 		keys = new Field[numSlots];
 		try{
 			// allocate and read the keys of this page
@@ -124,7 +163,10 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return maxEntries(compressed ? COMPRESSED_KEY_BUDGET : td.getFieldType(keyField).getLen());
+	}
+
+	private static int maxEntries(int keySize) {
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -132,6 +174,39 @@ public class BTreeInternalPage extends BTreePage {
         return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader;
 	}
 
+	//压缩页中除了父指针、类别、头部和孩子指针以外，留给键的字节数
+	private static int keyArea(int numSlots) {
+		int headerSize = (numSlots + 7) / 8;
+		return BufferPool.getPageSize() - (INDEX_SIZE + 1 + headerSize + INDEX_SIZE * numSlots);
+	}
+
+	/**
+	 * @return true if the internal pages of a B+ tree keyed on the given
+	 *         field can be compressed at the current page size: the key is a
+	 *         string and a page has room for many keys of the full length
+	 */
+	public static boolean canCompress(TupleDesc td, int keyField) {
+		return td.getFieldType(keyField) == Type.STRING_TYPE
+				&& keyArea(maxEntries(COMPRESSED_KEY_BUDGET) + 1) >= 8 * MAX_KEY_COST;
+	}
+
+	/**
+	 * @return true if this page stores its keys front coded
+	 * @see #createEmptyCompressedPageData()
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Generate the data of an empty compressed internal page.
+	 */
+	static byte[] createEmptyCompressedPageData() {
+		byte[] data = createEmptyPageData();
+		data[INDEX_SIZE] = (byte) COMPRESSED;
+		return data;
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
@@ -198,6 +273,25 @@ public class BTreeInternalPage extends BTreePage {
 		return f;
 	}
 
+	//压缩页：孩子指针之后是按槽顺序前缀编码的键
+	private void readCompressed(DataInputStream dis) throws IOException {
+		for (int i = 0; i < numSlots; i++) {
+			int child = dis.readInt();
+			children[i] = isSlotUsed(i) ? child : -1;
+		}
+		byte[] prev = new byte[0];
+		for (int i = 1; i < numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			int shared = dis.readUnsignedByte();
+			int rest = dis.readUnsignedByte();
+			byte[] key = Arrays.copyOf(prev, shared + rest);
+			dis.readFully(key, shared, rest);
+			keys[i] = new StringField(new String(key), Type.STRING_LEN);
+			prev = key;
+		}
+	}
+
 	/**
 	 * Read child pointers from the source file.
 	 */
@@ -240,6 +334,8 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		if (compressed)
+			return getCompressedPageData();
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -341,6 +437,59 @@ public class BTreeInternalPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	private byte[] getCompressedPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(parent);
+			dos.writeByte(childCategory | COMPRESSED);
+			dos.write(header);
+			for (int i = 0; i < numSlots; i++)
+				dos.writeInt(isSlotUsed(i) ? children[i] : 0);
+			String prev = "";
+			for (int i = 1; i < numSlots; i++) {
+				if (!isSlotUsed(i))
+					continue;
+				String key = ((StringField) keys[i]).getValue();
+				int shared = sharedPrefix(prev, key);
+				dos.writeByte(shared);
+				dos.writeByte(key.length() - shared);
+				dos.writeBytes(key.substring(shared));
+				prev = key;
+			}
+			if (dos.size() > len)
+				throw new IllegalStateException("keys overflow compressed page " + pid.getPageNumber());
+			dos.write(new byte[len - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	//压缩页中键已占用的字节数
+	private int keyBytes() {
+		int bytes = 0;
+		String prev = "";
+		for (int i = 1; i < numSlots; i++) {
+			if (isSlotUsed(i)) {
+				String key = ((StringField) keys[i]).getValue();
+				bytes += 2 + key.length() - sharedPrefix(prev, key);
+				prev = key;
+			}
+		}
+		return bytes;
+	}
+
+	private static int sharedPrefix(String a, String b) {
+		int n = Math.min(a.length(), b.length());
+		int i = 0;
+		while (i < n && a.charAt(i) == b.charAt(i))
+			i++;
+		return i;
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -417,6 +566,15 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if (compressed) {
+			int slot = rid.getTupleNumber();
+			Field old = keys[slot];
+			keys[slot] = e.getKey();
+			int bytes = keyBytes();
+			keys[slot] = old;
+			if (bytes > keyArea(numSlots))
+				throw new DbException("no room on compressed page for updated key " + e.getKey());
+		}
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -451,6 +609,8 @@ public class BTreeInternalPage extends BTreePage {
 	public void insertEntry(BTreeEntry e) throws DbException {
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
+		if (compressed && keyArea(numSlots) - keyBytes() < 2 + ((StringField) e.getKey()).getValue().length())
+			throw new DbException("called insertEntry on compressed page with no room for the key");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
 			throw new DbException("table id mismatch in insertEntry");
@@ -570,13 +730,28 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		return numSlots - numFreeSlots() - 1;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a compressed page
+	 * this is scaled down by the bytes its keys take: it is 0 once the free
+	 * bytes are not enough for any key, getMaxEntries() only if the page has
+	 * no entries, and less than half of getMaxEntries() if the keys take
+	 * more than half of the bytes for them.
 	 */
 	public int getNumEmptySlots() {
+		int free = numFreeSlots();
+		if (!compressed || free == getMaxEntries())
+			return free;
+		int area = keyArea(numSlots);
+		int freeBytes = area - keyBytes() - RESERVED_BYTES;
+		if (freeBytes <= 0)
+			return 0;
+		return Math.min(free, (int) ((long) freeBytes * getMaxEntries() / area));
+	}
+
+	private int numFreeSlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -607,6 +782,53 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		usedSlots = null;
+	}
+
+	private int[] usedSlots() {
+		int[] used = usedSlots;
+		if (used == null) {
+			int n = 0;
+			for (int i = 0; i < numSlots; i++)
+				if (isSlotUsed(i))
+					n++;
+			used = new int[n];
+			n = 0;
+			for (int i = 0; i < numSlots; i++)
+				if (isSlotUsed(i))
+					used[n++] = i;
+			usedSlots = used;
+		}
+		return used;
+	}
+
+	/**
+	 * Find the child page that may hold the given key, with a binary search
+	 * over the keys on this page. This is the left child of the first entry
+	 * whose key is greater than or equal to f, or the right child of the last
+	 * entry if all the keys are less than f, so that a search for duplicate
+	 * keys ends at the left-most page that may hold them.
+	 *
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		int[] used = usedSlots();
+		// used[0]是最左边的孩子（槽0），used[1..]是各个条目
+		if (used.length < 2 || used[0] != 0)
+			return null;
+		if (f == null)
+			return new BTreePageId(pid.getTableId(), children[0], childCategory);
+		int lo = 1, hi = used.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[used[mid]].compare(Op.LESS_THAN, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		//lo是第一个不小于f的条目，取它的左孩子；都小于f时lo-1是最后一个条目，取它的右孩子
+		return new BTreePageId(pid.getTableId(), children[used[lo - 1]], childCategory);
 	}
 
 	/**
@@ -769,8 +991,14 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null)
+					continue;
+				//左孩子在前面最近的已使用槽中，中间可能有删除留下的空槽
+				int left = entry - 1;
+				while(left > 0 && !p.isSlotUsed(left))
+					left--;
+				BTreePageId childId = p.getChildId(left);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -27,6 +27,9 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	//按顺序排列的已使用槽号，供findSlot二分查找；槽的使用情况改变时置为null，下次查找时重建
+	private volatile int[] usedSlots;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -476,6 +479,41 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		usedSlots = null;
+	}
+
+	private int[] usedSlots() {
+		int[] used = usedSlots;
+		if (used == null) {
+			used = new int[getNumTuples()];
+			int n = 0;
+			for (int i = 0; i < numSlots; i++)
+				if (isSlotUsed(i))
+					used[n++] = i;
+			usedSlots = used;
+		}
+		return used;
+	}
+
+	/**
+	 * Find the first tuple on this page whose key is greater than or equal
+	 * to f, with a binary search over the keys on this page.
+	 *
+	 * @param f - the key to search for
+	 * @return the slot of that tuple, or {@link #getMaxTuples()} if all the
+	 *         keys on this page are less than f
+	 */
+	public int findSlot(Field f) {
+		int[] used = usedSlots();
+		int lo = 0, hi = used.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (tuples[used[mid]].getField(keyField).compare(Predicate.Op.LESS_THAN, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo < used.length ? used[lo] : numSlots;
 	}
 
 	/**
@@ -486,6 +524,14 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page whose keys are greater
+	 * than or equal to f, in key order, found with {@link #findSlot}
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		return new BTreeLeafPageIterator(this, findSlot(f));
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -532,6 +578,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int firstSlot) {
+		this.p = p;
+		this.curTuple = firstSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
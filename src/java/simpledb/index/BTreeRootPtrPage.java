@@ -16,6 +16,8 @@ import java.io.*;
 public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
+	// flag in the root category byte of a file whose internal pages front code string keys
+	static final int COMPRESSED_KEYS = 0x80;
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
@@ -25,6 +27,7 @@ public class BTreeRootPtrPage implements Page {
     private int root;
 	private int rootCategory;
 	private int header;
+	private boolean compressedKeys;
 
 	private byte[] oldData;
 
@@ -35,7 +38,8 @@ public class BTreeRootPtrPage implements Page {
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
-	 * of the first header page
+	 * of the first header page. The high bit of the category byte is set in
+	 * files whose internal pages front code their keys.
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
@@ -43,7 +47,9 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the root pointer
 		root = dis.readInt();
-		rootCategory = dis.readByte();
+		int category = dis.readUnsignedByte();
+		compressedKeys = (category & COMPRESSED_KEYS) != 0;
+		rootCategory = category & ~COMPRESSED_KEYS;
 
 		// read in the header pointer
 		header = dis.readInt();
@@ -94,7 +100,7 @@ public class BTreeRootPtrPage implements Page {
 
 		// write out the category of the root page (leaf or internal)
 		try{
-			dos.writeByte((byte) rootCategory);
+			dos.writeByte((byte) (compressedKeys ? rootCategory | COMPRESSED_KEYS : rootCategory));
 		}catch(IOException e){
 			e.printStackTrace();
 		}
@@ -128,6 +134,27 @@ public class BTreeRootPtrPage implements Page {
         return new byte[PAGE_SIZE]; //all 0
 	}
 
+	/**
+	 * Generate the data of an empty BTreeRootPtrPage for a new file.
+	 *
+	 * @param compressedKeys - true if the internal pages of the file should
+	 *                         front code their keys
+	 * @see BTreeInternalPage#canCompress
+	 */
+	static byte[] createEmptyPageData(boolean compressedKeys) {
+		byte[] data = createEmptyPageData();
+		if(compressedKeys)
+			data[BTreePage.INDEX_SIZE] = (byte) COMPRESSED_KEYS;
+		return data;
+	}
+
+	/**
+	 * @return true if new internal pages of this file front code their keys
+	 */
+	public boolean compressedKeys() {
+		return compressedKeys;
+	}
+
 	public void markDirty(boolean dirty, TransactionId tid){
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
@@ -3,6 +3,8 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -21,6 +23,9 @@ public class JoinOptimizer {
     final LogicalPlan p;
     final List<LogicalJoinNode> joins ;
 
+    /** Fraction of the cross product that a range join is assumed to return. */
+    public static final double RANGE_SELECTIVITY = 0.30;
+
     /**
      * Constructor
      * 
@@ -75,7 +80,22 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        if (lj.indexProbe && !(lj instanceof LogicalSubplanJoinNode)
+                && IndexNestedLoopJoin.supports(lj.p)
+                && IndexNestedLoopJoin.canProbe(plan2, t2id)) {
+            // the optimizer found searching the index on plan2 once per
+            // tuple of plan1 cheaper than scanning plan2
+            return new IndexNestedLoopJoin(p, plan1, plan2);
+        }
+
+        boolean sorted1 = SortMergeJoin.isSortedOn(plan1, t1id);
+        boolean sorted2 = !(lj instanceof LogicalSubplanJoinNode)
+                && SortMergeJoin.isSortedOn(plan2, t2id);
+
+        if (lj.p == Predicate.Op.EQUALS && sorted1 && sorted2) {
+            // both inputs already in join order: merge them without a hash table
+            j = new SortMergeJoin(p, plan1, plan2, true, true);
+        } else if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
@@ -87,6 +107,10 @@ public class JoinOptimizer {
             } catch (Exception e) {
                 j = new Join(p, plan1, plan2);
             }
+        } else if (SortMergeJoin.supports(lj.p)) {
+            // range predicates: one pass over both sorted inputs instead of
+            // rescanning plan2 for every tuple of plan1
+            j = new SortMergeJoin(p, plan1, plan2, sorted1, sorted2);
         } else {
             j = new Join(p, plan1, plan2);
         }
@@ -133,10 +157,83 @@ public class JoinOptimizer {
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
             // scancost(t1) + ntups(t1) x scancost(t2) //IO cost + ntups(t1) x ntups(t2) //CPU cost
+            if (j.p != Predicate.Op.EQUALS && SortMergeJoin.supports(j.p))
+                return estimateSortMergeJoinCost(card1, card2, cost1, cost2);
             return cost1 + card1*cost2 + card2*card1;
         }
     }
 
+    /**
+     * Estimate the cost of a {@link SortMergeJoin} on a range predicate: one
+     * scan of each input, sorting both, one pass of the merge over both, and
+     * one predicate application per output tuple, of which there are about
+     * {@link #RANGE_SELECTIVITY} x card1 x card2.
+     *
+     * @return An estimate of the cost of the join, in terms of cost1 and cost2
+     */
+    public static double estimateSortMergeJoinCost(int card1, int card2,
+            double cost1, double cost2) {
+        return cost1 + cost2 + sortCost(card1) + sortCost(card2)
+                + card1 + card2 + RANGE_SELECTIVITY * card1 * card2;
+    }
+
+    /**
+     * Estimate the cost of an {@link IndexNestedLoopJoin} that searches a B+
+     * tree on t2.f2 once per tuple of the left-hand side. Each probe reads
+     * the tree from the root down to a leaf and then the leaves holding its
+     * matches: one leaf and about one tuple for an equality, and
+     * {@link #RANGE_SELECTIVITY} of the leaves and tuples for a range.
+     *
+     * @param j
+     *            A LogicalJoinNode whose right-hand side is a base table
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param card2
+     *            Estimated cardinality of the right-hand side of the query
+     * @param cost1
+     *            Estimated cost of one full scan of the left-hand side
+     * @param cost2
+     *            Estimated cost of one full scan of the right-hand table
+     * @return An estimate of the cost of the join, or Double.MAX_VALUE if
+     *         t2.f2 has no index that an index join can use
+     */
+    public double estimateIndexJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        BTreeFile index = indexOn(j);
+        if (index == null)
+            return Double.MAX_VALUE;
+        int pages = Math.max(1, index.numPages());
+        // estimateScanCost charges the same cost for every page of the table
+        double pageCost = cost2 / pages;
+        double probe;
+        if (j.p == Predicate.Op.EQUALS)
+            probe = pageCost * index.estimateHeight() + 1;
+        else
+            probe = pageCost * (index.estimateHeight() + RANGE_SELECTIVITY * pages)
+                    + RANGE_SELECTIVITY * card2;
+        return cost1 + card1 * probe;
+    }
+
+    // the B+ tree that stores t2 keyed on f2, or null if there is none
+    private BTreeFile indexOn(LogicalJoinNode j) {
+        if (p == null || j instanceof LogicalSubplanJoinNode || !IndexNestedLoopJoin.supports(j.p))
+            return null;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return null;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile))
+            return null;
+        BTreeFile index = (BTreeFile) f;
+        TupleDesc td = index.getTupleDesc();
+        return j.f2PureName.equals(td.getFieldName(index.keyField())) ? index : null;
+    }
+
+    // n log n comparisons to sort n tuples
+    private static double sortCost(int card) {
+        return card < 2 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -196,7 +293,7 @@ public class JoinOptimizer {
         }
         else
         {
-            card = (int)(card1*card2*0.30);
+            card = (int)(card1*card2*RANGE_SELECTIVITY);
         }
 
         return card <= 0 ? 1 : card;
@@ -418,6 +515,22 @@ public class JoinOptimizer {
 
         LogicalJoinNode j2 = j.swapInnerOuter();
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+
+        // an index can only be probed if the inner side is a base table
+        if (news.isEmpty() || doesJoin(prevBest, table1Alias)) {
+            double indexCost = estimateIndexJoinCost(j, t1card, t2card, t1cost, t2cost);
+            if (indexCost < cost1) {
+                cost1 = indexCost;
+                j = j.withIndexProbe();
+            }
+        }
+        if (news.isEmpty() || !doesJoin(prevBest, table1Alias)) {
+            double indexCost = estimateIndexJoinCost(j2, t2card, t1card, t2cost, t1cost);
+            if (indexCost < cost2) {
+                cost2 = indexCost;
+                j2 = j2.withIndexProbe();
+            }
+        }
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
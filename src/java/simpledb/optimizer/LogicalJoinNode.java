@@ -25,6 +25,9 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** True if the optimizer chose to probe an index on t2.f2 once per t1 tuple instead of scanning t2 */
+    public boolean indexProbe;
+
     public LogicalJoinNode() {
     }
 
@@ -64,6 +67,13 @@ public class LogicalJoinNode {
         return new LogicalJoinNode(t2Alias,t1Alias,f2PureName,f1PureName, newp);
     }
     
+    /** Return a copy of this LogicalJoinNode that probes the index on t2.f2. */
+    public LogicalJoinNode withIndexProbe() {
+        LogicalJoinNode j = new LogicalJoinNode(t1Alias, t2Alias, f1PureName, f2PureName, p);
+        j.indexProbe = true;
+        return j;
+    }
+
     @Override public boolean equals(Object o) {
         if (!(o instanceof LogicalJoinNode)) return false;
         LogicalJoinNode j2 =(LogicalJoinNode)o;
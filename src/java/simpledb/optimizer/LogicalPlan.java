@@ -38,6 +38,7 @@ public class LogicalPlan {
     private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1;
     private String query;
 //    private Query owner;
 
@@ -219,6 +220,23 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT clause, so that at most n tuples are returned.  SimpleDb only supports
+        LIMIT together with an ORDER BY; the plan then keeps only the first n tuples of
+        the order instead of sorting the whole input.
+        @param n the most tuples to return
+        @throws ParsingException if n is negative
+    */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("LIMIT must not be negative.");
+        limit = n;
+    }
+
+    /** @return the LIMIT of this plan, or -1 if it has none */
+    public int getLimit() {
+        return limit;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -292,6 +310,7 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        Map<String,SeqScan> scans = new HashMap<>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -303,6 +322,7 @@ public class LogicalPlan {
             }
             
             subplanMap.put(table.alias,ss);
+            scans.put(table.alias, ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
@@ -335,6 +355,11 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
+            //主键上的条件变成B+树上的范围查找，只读范围内的叶子页；
+            //Filter仍然保留，基数估计和索引连接都要看到它
+            SeqScan scan = scans.get(lf.tableAlias);
+            if (scan.isKeyedOn(p.getField()) && IndexNestedLoopJoin.supports(lf.p))
+                narrowKeyRange(scan, new IndexPredicate(lf.p, f));
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
@@ -468,16 +493,60 @@ public class LogicalPlan {
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
+            //输入已经按分组字段有序时逐组输出
+            if (groupByField != null)
+                aggNode.setStreaming(Aggregate.isGroupedOn(node, td.fieldNameToIndex(groupByField)));
             node = aggNode;
         }
 
+        if (limit >= 0 && !hasOrderBy) {
+            throw new ParsingException("LIMIT without ORDER BY is not supported.");
+        }
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int field = node.getTupleDesc().fieldNameToIndex(oByField);
+            if (limit >= 0)
+                node = new TopN(field, oByAsc, limit, node);
+            else
+                node = new OrderBy(field, oByAsc, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * Narrow the key range of a scan of a B+ tree by a predicate on the key.
+     * Of several bounds on the same side, the tighter one is kept; a range
+     * that is still too wide is harmless because the filter stays above the
+     * scan.
+     */
+    static void narrowKeyRange(SeqScan scan, IndexPredicate p) {
+        IndexPredicate from = scan.getKeyFrom(), to = scan.getKeyTo();
+        switch (p.getOp()) {
+            case EQUALS:
+                from = p;
+                break;
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                if (from == null || tighter(p, from, Predicate.Op.GREATER_THAN))
+                    from = p;
+                break;
+            default:
+                if (to == null || tighter(p, to, Predicate.Op.LESS_THAN))
+                    to = p;
+                break;
+        }
+        scan.setKeyRange(from, to);
+    }
+
+    //p比old更紧：值更靠里，或者值相同但不含等号；old是=时不会被替换
+    private static boolean tighter(IndexPredicate p, IndexPredicate old, Predicate.Op strict) {
+        if (old.getOp() == Predicate.Op.EQUALS)
+            return false;
+        if (p.getField().compare(strict, old.getField()))
+            return true;
+        return p.getField().equals(old.getField()) && p.getOp() == strict;
+    }
+
     public static void main(String[] argv) {
         // construct a 3-column table schema
         Type[] types = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
@@ -12,6 +12,8 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
@@ -29,7 +31,8 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof SortMergeJoin
+                || o instanceof IndexNestedLoopJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -138,18 +141,29 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
+            } else if (plan instanceof HashEquiJoin || plan instanceof SortMergeJoin
+                    || plan instanceof IndexNestedLoopJoin) {
+                JoinPredicate jp;
+                String label;
+                if (plan instanceof HashEquiJoin) {
+                    jp = ((HashEquiJoin) plan).getJoinPredicate();
+                    label = HASH_JOIN;
+                } else if (plan instanceof SortMergeJoin) {
+                    jp = ((SortMergeJoin) plan).getJoinPredicate();
+                    label = MERGE_JOIN;
+                } else {
+                    jp = ((IndexNestedLoopJoin) plan).getJoinPredicate();
+                    label = INDEX_JOIN;
+                }
+                TupleDesc td = plan.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", label, field1
+                        + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (label.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = label.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -158,7 +172,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - label.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -219,13 +233,18 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof OrderBy) {
-                OrderBy o = (OrderBy) plan;
+            } else if (plan instanceof OrderBy || plan instanceof TopN) {
+                String field;
+                if (plan instanceof TopN)
+                    field = children[0].getTupleDesc().getFieldName(
+                            ((TopN) plan).getOrderByField())
+                            + ",limit:" + ((TopN) plan).getLimit();
+                else
+                    field = children[0].getTupleDesc().getFieldName(
+                            ((OrderBy) plan).getOrderByField());
                 thisNode.text = String.format(
                         "%1$s(%2$s),card:%3$d",
-                        ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+                        ORDERBY, field, plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
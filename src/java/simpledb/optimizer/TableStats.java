@@ -5,6 +5,7 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
@@ -29,7 +30,7 @@ public class TableStats {
 
     static final int IOCOSTPERPAGE = 1000;
     private int tableId;
-    private HeapFile heapFile;
+    private DbFile heapFile;
     private int ntups;
     private ConcurrentHashMap<Integer,IntHistogram> field_histogram = new ConcurrentHashMap<>();
     private int numfield;
@@ -103,11 +104,14 @@ public class TableStats {
         this.tableId = tableid;
         this.ioCostPerPage = ioCostPerPage;
         TransactionId tid = new TransactionId();
-        //根据tableid找到对应的File
-        heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        //根据tableid找到对应的File，可以是HeapFile，也可以是BTreeFile
+        heapFile = Database.getCatalog().getDatabaseFile(tableid);
         DbFileIterator dbFileIterator = heapFile.iterator(tid);
         numfield = heapFile.getTupleDesc().numFields();
-        numpages = heapFile.numPages();
+        if (heapFile instanceof BTreeFile)
+            numpages = ((BTreeFile) heapFile).numPages();
+        else
+            numpages = ((HeapFile) heapFile).numPages();
         max = new int[numfield];
         min = new int[numfield];
         Arrays.fill(max, Integer.MIN_VALUE);
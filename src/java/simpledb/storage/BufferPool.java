@@ -8,11 +8,25 @@ import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -31,412 +45,656 @@ public class BufferPool {
 
     private static int pageSize = DEFAULT_PAGE_SIZE;
 
-    private static int MAX_SIZE = 20;
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+    /** Number of consecutive page numbers of one table a transaction must
+    request before its reads are treated as a sequential scan. */
+    private static final int SCAN_THRESHOLD = 4;
+    /** Default number of pages a sequential scan reads ahead of itself. */
+    public static final int DEFAULT_PREFETCH_WINDOW = 8;
+    //所有缓冲池共用的后台预读线程
+    private static final ExecutorService PREFETCHER = Executors.newFixedThreadPool(4, r -> {
+        Thread thread = new Thread(r, "simpledb-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
     private final int numPages;
+    //缓冲池的页表，淘汰顺序由替换策略决定
     private final ConcurrentHashMap<PageId,Page> pages = new ConcurrentHashMap<>();
-    private LRUCache lruCache;
-    private LockManage lockManage;
+    //页表中的页数加上已经预留、正在放入的页数，不超过numPages
+    private final AtomicInteger size = new AtomicInteger();
+    //正在从磁盘读取的页，同一个页的并发缺页只读一次
+    private final ConcurrentHashMap<PageId,CompletableFuture<Page>> loading = new ConcurrentHashMap<>();
+    private final ReplacementPolicy replacementPolicy;
+    private final LockManage lockManage;
+    //每个事务最近访问的页，用来识别顺序扫描
+    private final ConcurrentHashMap<TransactionId,ScanState> scans = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile int prefetchWindow = DEFAULT_PREFETCH_WINDOW;
+    //由预读放入缓冲池、还没有被访问过的页
+    private final Set<PageId> prefetched = ConcurrentHashMap.newKeySet();
+    private final PrefetchStats prefetchStats = new PrefetchStats();
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * with {@link ClockPolicy}.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
         // some code goes here
+        this(numPages, new ClockPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * in the order chosen by the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param replacementPolicy the policy choosing which page to evict
+     */
+    public BufferPool(int numPages, ReplacementPolicy replacementPolicy) {
         this.numPages = numPages;
-        this.lruCache = new LRUCache(numPages);
+        this.replacementPolicy = replacementPolicy;
         this.lockManage = new LockManage();
     }
 
+    /**
+     * How the lock manager keeps transactions from deadlocking while they wait
+     * for page locks. Whichever transaction loses is aborted with a
+     * {@link TransactionAbortedException}.
+     */
+    public enum DeadlockPolicy {
+        /** Wait indefinitely; abort the youngest transaction on a wait-for cycle. */
+        DETECTION,
+        /** Abort a waiter once it has waited longer than a randomized timeout. */
+        TIMEOUT,
+        /** An older requester wounds (aborts) younger conflicting transactions; a younger one waits. */
+        WOUND_WAIT,
+        /** An older requester waits; a younger requester that conflicts with an older one dies. */
+        WAIT_DIE
+    }
+
+    /**
+     * Counters describing how long transactions have waited for page locks.
+     */
+    public static class LockWaitStats {
+        private final AtomicLong waits = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        private final AtomicLong aborts = new AtomicLong();
+
+        void recordWait(long nanos, boolean aborted) {
+            waits.incrementAndGet();
+            waitNanos.addAndGet(nanos);
+            maxWaitNanos.accumulateAndGet(nanos, Math::max);
+            if (aborted) {
+                aborts.incrementAndGet();
+            }
+        }
+
+        void recordAbort() {
+            aborts.incrementAndGet();
+        }
+
+        /** @return number of lock requests that had to wait */
+        public long getWaits() {
+            return waits.get();
+        }
+
+        /** @return total time spent waiting for locks, in nanoseconds */
+        public long getWaitNanos() {
+            return waitNanos.get();
+        }
+
+        /** @return longest single lock wait, in nanoseconds */
+        public long getMaxWaitNanos() {
+            return maxWaitNanos.get();
+        }
+
+        /** @return number of lock requests that ended in a transaction abort */
+        public long getAborts() {
+            return aborts.get();
+        }
+
+        public void reset() {
+            waits.set(0);
+            waitNanos.set(0);
+            maxWaitNanos.set(0);
+            aborts.set(0);
+        }
+
+        @Override
+        public String toString() {
+            long n = waits.get();
+            return "waits=" + n + " avgWaitUs=" + (n == 0 ? 0 : waitNanos.get() / n / 1000)
+                    + " maxWaitUs=" + maxWaitNanos.get() / 1000 + " aborts=" + aborts.get();
+        }
+    }
+
+    /**
+     * Counters describing how useful read-ahead has been.
+     */
+    public static class PrefetchStats {
+        private final AtomicLong issued = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong wasted = new AtomicLong();
+
+        /** @return number of page reads started by {@link BufferPool#prefetch} */
+        public long getIssued() {
+            return issued.get();
+        }
+
+        /** @return number of prefetched pages that were later asked for */
+        public long getHits() {
+            return hits.get();
+        }
+
+        /** @return number of prefetched pages evicted or discarded before anyone asked for them */
+        public long getWasted() {
+            return wasted.get();
+        }
+
+        public void reset() {
+            issued.set(0);
+            hits.set(0);
+            wasted.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return "issued=" + issued.get() + " hits=" + hits.get() + " wasted=" + wasted.get();
+        }
+    }
+
+    //预读的future，discardPage据此撤销正在进行的预读
+    private static class Prefetch extends CompletableFuture<Page> {
+    }
+
+    /**
+     * 页级锁表。每个页有自己的 PageLock（独立的 latch 和等待队列），
+     * 加锁、升级、释放只在该页上同步，释放时只唤醒被授予锁的等待者。
+     */
     private static class LockManage{
-        //定义一个哈希表，键值是要上锁的页，值为一个事务链表
-        ConcurrentHashMap<PageId,transationlocklist> locks;
-        private WaitforGraph waitforGraph;
-        public LockManage() {
-            locks = new ConcurrentHashMap<>();
-            waitforGraph = new WaitforGraph();
-        }
-
-        //内部类等待依赖图
-        public  class WaitforGraph{
-            //存放事务的列表
-            ArrayList<node> transationnode = new ArrayList<>();
-            //存放事务之间的等待关系,默认初始化为0。
-            int[][] waitRelation = new int[MAX_SIZE][MAX_SIZE];
-            //一个哈希表将事务号转换成整形，方便存放
-            ConcurrentHashMap<TransactionId,Integer> index = new ConcurrentHashMap<>();
-            public void addrelation(TransactionId tid1,TransactionId tid2)
+        //锁的类型，0为s锁，1为x锁
+        static final int SHARED = 0;
+        static final int EXCLUSIVE = 1;
+
+        //按页哈希的锁表
+        private final ConcurrentHashMap<PageId,PageLock> locks = new ConcurrentHashMap<>();
+        //每个事务持有锁的页，提交或回滚时直接按这个集合释放
+        private final ConcurrentHashMap<TransactionId,Set<PageId>> heldpages = new ConcurrentHashMap<>();
+        //正在等待的事务和它的请求，一个事务同一时刻最多在一个页上等待
+        private final ConcurrentHashMap<TransactionId,LockRequest> waiting = new ConcurrentHashMap<>();
+        private final WaitforGraph waitforGraph = new WaitforGraph();
+        //被更老的事务伤害（wound-wait）的事务，下次加锁时回滚
+        private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+        private volatile DeadlockPolicy policy = DeadlockPolicy.DETECTION;
+        //TIMEOUT策略的基础等待时间，实际等待时间在[timeout, 2*timeout)之间随机
+        private volatile long timeoutmillis = 500;
+        private final LockWaitStats stats = new LockWaitStats();
+
+        /**
+         * 等待依赖图。边 a->b 表示事务a在等待事务b释放锁，只保存正在等待的事务的出边，
+         * 图的大小随活跃的等待事务增长，事务不再等待或结束时删除它的出边。
+         * <p>
+         * 只有新加入的出边可能形成新的环，所以每次只从新的出边出发检查能否回到该事务。
+         * 发现环时选择环上最年轻（TransactionId最大）的事务作为牺牲者：
+         * 它开始得最晚，回滚损失的工作通常最少，而且较老的事务不会一直被回滚而饿死。
+         */
+        public static class WaitforGraph{
+            //事务 -> 它等待的事务
+            private final Map<TransactionId,Set<TransactionId>> waitRelation = new HashMap<>();
+
+            /**
+             * 用新的等待集合替换tid原来的出边。
+             *
+             * @return 新的出边成环时返回环上被选中回滚的事务，否则返回null
+             */
+            public synchronized TransactionId setwaits(TransactionId tid,Set<TransactionId> holders)
             {
-                int index1 = -1;
-                if(index.get(tid1)>=0);
+                if(holders.isEmpty())
                 {
-                    index1 = index.get(tid1);
+                    waitRelation.remove(tid);
+                    return null;
                 }
-                int index2 = -1;
-                if(index.get(tid2)>=0)
-                {
-                    index2 = index.get(tid2);
+                Set<TransactionId> old = waitRelation.put(tid, holders);
+                List<TransactionId> cycle = new ArrayList<>();
+                Set<TransactionId> visited = new HashSet<>();
+                for (TransactionId holder : holders) {
+                    //原来就有的边不会形成新的环
+                    if(old != null && old.contains(holder))
+                    {
+                        continue;
+                    }
+                    if(findpath(holder, tid, visited, cycle))
+                    {
+                        cycle.add(tid);
+                        return youngest(cycle);
+                    }
                 }
-                waitRelation[index1][index2] = 1;
+                return null;
             }
-            public void addtransation(TransactionId tid,PageId pid,int locktype)
+
+            //从from出发深度优先搜索target，找到时path中是环上除target外的事务
+            private boolean findpath(TransactionId from,TransactionId target,
+                                     Set<TransactionId> visited,List<TransactionId> path)
             {
-                node tempnode = new node();
-                tempnode.pid = pid;
-                tempnode.locktype = locktype;
-                tempnode.tid = tid;
-                transationnode.add(tempnode);
-                if(index.get(tid)==null)
+                if(from.equals(target))
                 {
-                    index.put(tid, transationnode.size());
+                    return true;
                 }
-                //判断要加的边
-                for (int i = 0; i < transationnode.size(); i++) {
-                    node node1 = transationnode.get(i);
-                    if(node1.pid == pid && node1.tid != tid)
-                    {
-                        if(node1.locktype == 1)
-                        {
-                            addrelation(node1.tid,tid);
-                        }
-                        else if(node1.locktype == 0)
+                if(!visited.add(from))
+                {
+                    return false;
+                }
+                Set<TransactionId> next = waitRelation.get(from);
+                if(next != null)
+                {
+                    for (TransactionId t : next) {
+                        if(findpath(t, target, visited, path))
                         {
-                            if(locktype == 1)
-                            {
-                                addrelation(node1.tid,tid);
-                            }
+                            path.add(from);
+                            return true;
                         }
                     }
                 }
-                isDeadLock(tid);
+                return false;
             }
-            public class node{
-                TransactionId tid;
-                PageId pid;
-                int locktype;
+
+            private static TransactionId youngest(List<TransactionId> cycle)
+            {
+                TransactionId victim = cycle.get(0);
+                for (TransactionId t : cycle) {
+                    if(t.getId() > victim.getId())
+                    {
+                        victim = t;
+                    }
+                }
+                return victim;
             }
-        }
 
-        //加锁,
-        public synchronized boolean lock(TransactionId tid,PageId pid,int lock_type)
-        {
-            //如果没有当前数据项的事务锁列表则创建
-            if(!locks.containsKey(pid))
+            //tid不再等待任何事务
+            public synchronized void clearwaits(TransactionId tid)
             {
-                locks.put(pid, getheadandtaillist());
-                locks.get(pid).key = pid;
-            }
-            //新建一个事务结点
-            transationlocklist templocklistnode = new transationlocklist();
-            //初始化
-            templocklistnode.tid = tid;
-            templocklistnode.locktype = lock_type;
-            //将结点放进头尾指针中去
-            //首先找到链表末尾
-            transationlocklist tailnode;
-            transationlocklist nownode = locks.get(pid);
-            tailnode=gettailnode(nownode);
-            templocklistnode.next = tailnode;
-            tailnode.prev.next = templocklistnode;
-            templocklistnode.prev = tailnode.prev;
-            tailnode.prev = templocklistnode;
-            //将当前的锁指令加入等待图看是否会有死锁，有的话则回滚
-            waitforGraph.addtransation(tid,pid,lock_type);
-            //是否可以加锁，如果可以则按照链表次序加锁，加锁成功返回true，加锁失败返回f
-            if(!addlock(locks.get(pid)))
+                waitRelation.remove(tid);
+            }
+        }
+
+        //一个页上的锁：持有者表和先进先出的等待队列，由latch保护
+        private static class PageLock{
+            final ReentrantLock latch = new ReentrantLock();
+            //持有锁的事务及其锁类型
+            final Map<TransactionId,Integer> holders = new HashMap<>();
+            //持有x锁的事务，没有则为null
+            TransactionId xholder;
+            final ArrayDeque<LockRequest> waiters = new ArrayDeque<>();
+            //已从锁表中删除，拿到它的线程需要重新查表
+            boolean retired;
+
+            boolean cangrant(LockRequest request)
             {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                if(request.locktype == SHARED)
+                {
+                    return xholder == null || xholder.equals(request.tid);
                 }
+                return holders.isEmpty() || (holders.size() == 1 && holders.containsKey(request.tid));
             }
-            else
+
+            void grant(LockRequest request)
             {
-                return  true;
+                holders.put(request.tid, request.locktype);
+                if(request.locktype == EXCLUSIVE)
+                {
+                    xholder = request.tid;
+                }
+            }
+        }
+
+        //一个等待中的加锁请求，每个请求有自己的条件变量，实现定向唤醒
+        private static class LockRequest{
+            final TransactionId tid;
+            final PageId pid;
+            final int locktype;
+            final Condition cond;
+            boolean granted = false;
+            boolean aborted = false;
+
+            LockRequest(TransactionId tid,PageId pid,int locktype,Condition cond){
+                this.tid = tid;
+                this.pid = pid;
+                this.locktype = locktype;
+                this.cond = cond;
             }
-            return false;
         }
 
-        //获取尾指针
-        public transationlocklist gettailnode(transationlocklist nownode)
+        //取得页锁并锁住latch，跳过已被删除的页锁
+        private PageLock latch(PageId pid)
         {
-            transationlocklist tailnode;
             while(true)
             {
-                if(nownode.istail)
+                PageLock pagelock = locks.computeIfAbsent(pid, k -> new PageLock());
+                pagelock.latch.lock();
+                if(!pagelock.retired)
                 {
-                    tailnode = nownode;
-                    return tailnode;
+                    return pagelock;
                 }
-                nownode = nownode.next;
+                pagelock.latch.unlock();
             }
         }
 
-        //解锁，同时考虑解锁后发生的可能的加锁
-        public synchronized void unlock(TransactionId tid,PageId pid,int lock_type,boolean remove)
+        //加锁，已持有相同或更强的锁时直接返回；s锁升级为x锁也在这里处理
+        public void lock(TransactionId tid,PageId pid,int lock_type) throws TransactionAbortedException
         {
-            if(!locks.containsKey(pid))
+            if(wounded.contains(tid))
             {
-//              throw DbException;
+                stats.recordAbort();
+                throw new TransactionAbortedException();
             }
-            else
-            {
-                transationlocklist templocklistnode = locks.get(pid).next;
-                transationlocklist unlocknode;
-                //找到要删除的结点
-                while(!templocklistnode.istail)
+            //在其他页上等待、需要回滚的牺牲者，释放latch之后再处理
+            List<TransactionId> victims = new ArrayList<>();
+            boolean aborted = false;
+            PageLock pagelock = latch(pid);
+            try {
+                Integer held = pagelock.holders.get(tid);
+                if(held != null && held >= lock_type)
+                {
+                    return;
+                }
+                boolean upgrade = held != null;
+                LockRequest request = new LockRequest(tid, pid, lock_type, pagelock.latch.newCondition());
+                //升级请求可以越过队列，其他请求在队列非空时排队，避免写者饿死
+                if((upgrade || pagelock.waiters.isEmpty()) && pagelock.cangrant(request))
+                {
+                    pagelock.grant(request);
+                    heldpages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+                    return;
+                }
+                if(upgrade)
+                {
+                    pagelock.waiters.addFirst(request);
+                }
+                else
                 {
-                    if(templocklistnode.tid == tid && templocklistnode.locktype == lock_type)
+                    pagelock.waiters.addLast(request);
+                }
+                waiting.put(tid, request);
+                long start = System.nanoTime();
+                //按死锁处理策略决定谁需要回滚
+                for (TransactionId victim : resolve(request, waitsfor(pagelock, request))) {
+                    if(tid.equals(victim))
+                    {
+                        pagelock.waiters.remove(request);
+                        request.aborted = true;
+                    }
+                    else
                     {
-                        if(!templocklistnode.isalocked)
+                        victims.add(victim);
+                    }
+                }
+                if(!victims.isEmpty())
+                {
+                    //牺牲者在别的页上等待，不能同时持有两个页的latch
+                    pagelock.latch.unlock();
+                    try {
+                        abortvictims(victims);
+                    } finally {
+                        pagelock.latch.lock();
+                    }
+                }
+                long timeout = policy == DeadlockPolicy.TIMEOUT
+                        ? TimeUnit.MILLISECONDS.toNanos(timeoutmillis + ThreadLocalRandom.current().nextLong(timeoutmillis + 1))
+                        : Long.MAX_VALUE;
+                while(!request.granted && !request.aborted)
+                {
+                    try {
+                        if(timeout == Long.MAX_VALUE)
                         {
-//                            throw DbException;
+                            request.cond.await();
                         }
-                        else
+                        else if((timeout = request.cond.awaitNanos(timeout)) <= 0 && !request.granted)
                         {
-                            unlocknode = templocklistnode;
-                            //因为是直接遍历求锁的状态，所以现在直接删除即可
-                            unlocknode.prev.next = unlocknode.next;
-                            unlocknode.next.prev = unlocknode.prev;
-                            break;
+                            request.aborted = true;
                         }
+                    } catch (InterruptedException e) {
+                        request.aborted = true;
                     }
-                    templocklistnode = templocklistnode.next;
                 }
-                //删除该节点看是否可以加新的锁
-                if(remove)
+                waiting.remove(tid);
+                waitforGraph.clearwaits(tid);
+                stats.recordWait(System.nanoTime() - start, request.aborted);
+                if(request.aborted)
                 {
-                    notifyAll();
-                    addlock(locks.get(pid));
+                    aborted = true;
+                    //当前请求出队后，后面的请求可能可以加锁了
+                    if(pagelock.waiters.remove(request))
+                    {
+                        grantwaiters(pid, pagelock, victims);
+                    }
                 }
+            } finally {
+                pagelock.latch.unlock();
             }
-        }
-
-        //事务终止
-        public void abort(TransactionId tid,int lock_type)
-        {
-            //删除每个数据项中该事务的s锁和x锁
-            //先删除s锁，但不执行下一步的加锁
-            //然后删除x锁，看本数据项的锁链表看是否能加锁
-            for (Map.Entry<PageId, transationlocklist> entry : locks.entrySet()) {
-                PageId pid = entry.getKey();
-                unlock(tid, pid, 0, false);
-                unlock(tid, pid, 1, true);
+            abortvictims(victims);
+            if(aborted)
+            {
+                throw new TransactionAbortedException();
             }
         }
 
-        //升级锁，当只有当前事务持有该数据项的s锁的时候能够升级
-        public void uplock(TransactionId tid,PageId pid)
+        /**
+         * 按死锁处理策略处理一个要等待conflicts中事务的请求。
+         *
+         * @return 需要立即回滚的正在等待的事务，可能包含请求自己
+         */
+        private List<TransactionId> resolve(LockRequest request,Set<TransactionId> conflicts)
         {
-            waitforGraph.addtransation(tid,pid,1);
-
-            int slock = 0;
-            int xlock = 0;
-            transationlocklist templocklistnode = locks.get(pid).next;
-            while(!templocklistnode.istail)
-            {
-                if(templocklistnode.isalocked)
-                {
-                    //上了s锁
-                    if(templocklistnode.locktype == 0)
-                    {
-                        slock++;
-                    }
-                    //上了x锁
-                    if(templocklistnode.locktype == 1)
+            List<TransactionId> victims = new ArrayList<>();
+            switch (policy) {
+                case DETECTION:
+                    TransactionId victim = waitforGraph.setwaits(request.tid, conflicts);
+                    if(victim != null)
                     {
-                        xlock++;
+                        victims.add(victim);
                     }
-                }
-                templocklistnode = templocklistnode.next;
-            }
-            templocklistnode = locks.get(pid).next;
-            while(!templocklistnode.istail)
-            {
-                if(templocklistnode.tid == tid)
-                {
-                    if(slock == 1 && templocklistnode.locktype == 0
-                    && templocklistnode.isalocked == true && xlock == 0)
-                    {
-                        templocklistnode.locktype = 1;
+                    break;
+                case WAIT_DIE:
+                    //年轻的事务不等待更老的事务
+                    for (TransactionId t : conflicts) {
+                        if(t.getId() < request.tid.getId())
+                        {
+                            victims.add(request.tid);
+                            break;
+                        }
                     }
-                    else {
-                        // 升级条件不满足
+                    break;
+                case WOUND_WAIT:
+                    //老的事务伤害更年轻的事务：正在等待的立即回滚，正在运行的下次加锁时回滚
+                    for (TransactionId t : conflicts) {
+                        if(t.getId() > request.tid.getId() && wounded.add(t))
+                        {
+                            victims.add(t);
+                        }
                     }
-                }
-                templocklistnode = templocklistnode.next;
+                    break;
+                default:
+                    //TIMEOUT：等待超时后回滚
+                    break;
             }
+            return victims;
         }
 
-        //判断是否有死锁lockManage.isDeadLock();
-        public void isDeadLock(TransactionId tid){
-            if(isCyclic())
-            {
-                try {
-                    throw new TransactionAbortedException();
-                } catch (TransactionAbortedException e) {
-                    throw new RuntimeException(e);
+        //request在该页上等待的事务：与它冲突的持有者和排在它前面的冲突请求
+        private Set<TransactionId> waitsfor(PageLock pagelock,LockRequest request)
+        {
+            Set<TransactionId> result = new HashSet<>();
+            for (Map.Entry<TransactionId, Integer> holder : pagelock.holders.entrySet()) {
+                if(!holder.getKey().equals(request.tid)
+                        && (request.locktype == EXCLUSIVE || holder.getValue() == EXCLUSIVE))
+                {
+                    result.add(holder.getKey());
                 }
             }
-        }
-
-        // 检测环
-        public boolean isCyclic() {
-            boolean[] visited = new boolean[MAX_SIZE];
-            boolean[] recStack = new boolean[MAX_SIZE];
-
-            for (int i = 0; i < MAX_SIZE; i++) {
-                if (isCyclicUtil(i, visited, recStack)) {
-                    return true;
+            for (LockRequest ahead : pagelock.waiters) {
+                if(ahead == request)
+                {
+                    break;
                 }
-            }
-            return false;
-        }
-
-        // 深度优先搜索
-        private boolean isCyclicUtil(int i, boolean[] visited, boolean[] recStack) {
-            if (recStack[i]) {
-                return true;
-            }
-            if (visited[i]) {
-                return false;
-            }
-            visited[i] = true;
-            recStack[i] = true;
-
-            for (int j = 0; j < MAX_SIZE; j++) {
-                if (waitforGraph.waitRelation[i][j] == 1) {
-                    if (isCyclicUtil(j, visited, recStack)) {
-                        return true;
-                    }
+                if(!ahead.tid.equals(request.tid)
+                        && (request.locktype == EXCLUSIVE || ahead.locktype == EXCLUSIVE))
+                {
+                    result.add(ahead.tid);
                 }
             }
-
-            recStack[i] = false;
-            return false;
+            return result;
         }
 
-        //看一个事务在一个数据项上是否有锁
-        public boolean hooldslock(TransactionId tid,PageId pid)
+        /**
+         * 按队列次序授予能加的锁，只唤醒被授予锁的请求；其余请求重新计算等待关系。
+         * 成环时牺牲者若在本页等待则直接回滚，否则加入victims，由调用者释放latch后回滚。
+         */
+        private void grantwaiters(PageId pid,PageLock pagelock,List<TransactionId> victims)
         {
-            if(locks.get(pid)==null)
+            boolean changed = true;
+            while(changed)
             {
-                return false;
-            }
-            transationlocklist templocklistnode = locks.get(pid).next;
-            while(!templocklistnode.istail)
-            {
-                if(templocklistnode.tid == tid && templocklistnode.isalocked == true)
+                changed = false;
+                while(!pagelock.waiters.isEmpty() && pagelock.cangrant(pagelock.waiters.peek()))
                 {
-                    return true;
+                    LockRequest request = pagelock.waiters.poll();
+                    pagelock.grant(request);
+                    heldpages.computeIfAbsent(request.tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+                    waitforGraph.clearwaits(request.tid);
+                    request.granted = true;
+                    request.cond.signal();
+                }
+                for (LockRequest request : pagelock.waiters) {
+                    for (TransactionId victim : resolve(request, waitsfor(pagelock, request))) {
+                        LockRequest victimrequest = waiting.get(victim);
+                        if(victimrequest != null && pagelock.waiters.remove(victimrequest))
+                        {
+                            waitforGraph.clearwaits(victim);
+                            victimrequest.aborted = true;
+                            victimrequest.cond.signal();
+                            //队列变了，重新检查
+                            changed = true;
+                        }
+                        else
+                        {
+                            victims.add(victim);
+                        }
+                    }
+                    if(changed)
+                    {
+                        break;
+                    }
                 }
-                templocklistnode = templocklistnode.next;
             }
-            return false;
         }
 
-        //获取锁的类型
-        public int locktype(TransactionId tid,PageId pid){
-            transationlocklist templocklistnode = locks.get(pid).next;
-            while(!templocklistnode.istail)
+        //回滚在其他页上等待的牺牲者，调用时不能持有任何页的latch
+        private void abortvictims(List<TransactionId> victims)
+        {
+            while(!victims.isEmpty())
             {
-                if(templocklistnode.tid == tid && templocklistnode.isalocked == true)
+                TransactionId victim = victims.remove(victims.size() - 1);
+                LockRequest request = waiting.get(victim);
+                if(request == null)
                 {
-                    return templocklistnode.locktype;
+                    //已经拿到锁或已经被回滚
+                    continue;
+                }
+                PageLock pagelock = locks.get(request.pid);
+                if(pagelock == null)
+                {
+                    continue;
+                }
+                pagelock.latch.lock();
+                try {
+                    if(pagelock.waiters.remove(request))
+                    {
+                        waitforGraph.clearwaits(victim);
+                        request.aborted = true;
+                        request.cond.signal();
+                        grantwaiters(request.pid, pagelock, victims);
+                    }
+                } finally {
+                    pagelock.latch.unlock();
                 }
-                templocklistnode = templocklistnode.next;
             }
-            return -1;
         }
 
-        //看能不能继续加锁
-        public boolean addlock(transationlocklist headnode)
+        //释放tid在pid上的锁
+        public void unlock(TransactionId tid,PageId pid)
         {
-            int slock = 0;
-            int xlock = 0;
-            boolean iscanlock = false;
-            transationlocklist templocklistnode = headnode.next;
-            while(!templocklistnode.istail)
-            {
-                //判断是否上锁
-                if(templocklistnode.isalocked)
+            List<TransactionId> victims = new ArrayList<>();
+            PageLock pagelock = latch(pid);
+            try {
+                if(pagelock.holders.remove(tid) == null)
                 {
-                    //上了s锁
-                    if(templocklistnode.locktype == 0)
-                    {
-                        slock++;
-                    }
-                    //上了x锁
-                    if(templocklistnode.locktype == 1)
-                    {
-                        xlock++;
-                    }
+                    return;
                 }
-                else
+                if(tid.equals(pagelock.xholder))
                 {
-                    if(xlock != 0)
-                    {
-                        return false;
-                    }
-                    //暂未考虑退出遍历
-                    if(templocklistnode.locktype == 0)
-                    {
-                        //此时已经保证没有互斥锁
-                        templocklistnode.isalocked = true;
-                        slock++;
-                        iscanlock = true;
-                    }
-                    else
-                    {
-                        //xs锁同时为空
-                        if(slock == 0)
-                        {
-                            templocklistnode.isalocked = true;
-                            xlock++;
-                            iscanlock = true;
-                        }
-                    }
+                    pagelock.xholder = null;
+                }
+                Set<PageId> held = heldpages.get(tid);
+                if(held != null)
+                {
+                    held.remove(pid);
+                }
+                grantwaiters(pid, pagelock, victims);
+                //页上没有锁也没有等待者时从锁表中删除
+                if(pagelock.holders.isEmpty() && pagelock.waiters.isEmpty())
+                {
+                    pagelock.retired = true;
+                    locks.remove(pid, pagelock);
                 }
-                templocklistnode = templocklistnode.next;
+            } finally {
+                pagelock.latch.unlock();
             }
-            return iscanlock;
+            abortvictims(victims);
         }
 
-        //事务列表，初始化时假设没有分配，locktype为锁的类型，0为s锁，1为x锁。
-        public class transationlocklist{
-            LockManage.transationlocklist prev;
-            LockManage.transationlocklist next;
-            PageId key;
-            boolean isalocked = false;
-            boolean istail = false;
-            TransactionId tid;
-            int locktype = -1;
-            public transationlocklist(){
+        //事务结束，释放它持有的所有锁，等待图中它的出边同时删除
+        public void unlockall(TransactionId tid)
+        {
+            wounded.remove(tid);
+            Set<PageId> held = heldpages.remove(tid);
+            if(held != null)
+            {
+                for (PageId pid : held) {
+                    unlock(tid, pid);
+                }
             }
+            waitforGraph.clearwaits(tid);
         }
-        //获取一个头尾项链的链表，用于每个页的锁链表的初始化。
-        public transationlocklist getheadandtaillist(){
-            LockManage.transationlocklist head;
-            LockManage.transationlocklist tail;
-            head = new transationlocklist();
-            tail = new transationlocklist();
-            tail.istail = true;
-            head.prev = tail;
-            tail.next = head;
-            head.next = tail;
-            tail.prev = head;
-            return head;
-        }
-    }
-
 
+        //看一个事务在一个数据项上是否有锁
+        public boolean hooldslock(TransactionId tid,PageId pid)
+        {
+            return locktype(tid, pid) != -1;
+        }
 
+        //获取锁的类型，没有锁返回-1
+        public int locktype(TransactionId tid,PageId pid){
+            PageLock pagelock = locks.get(pid);
+            if(pagelock == null)
+            {
+                return -1;
+            }
+            pagelock.latch.lock();
+            try {
+                Integer held = pagelock.holders.get(tid);
+                return held == null ? -1 : held;
+            } finally {
+                pagelock.latch.unlock();
+            }
+        }
+    }
 
     public static int getPageSize() {
       return pageSize;
@@ -470,64 +728,314 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-//        System.out.println(22);
-        int locktype = -1;
-        if(lockManage.hooldslock(tid, pid))
+        //根据事务的处理需求加锁，已有s锁时在lock中升级
+        int locktype = perm == Permissions.READ_ONLY ? LockManage.SHARED : LockManage.EXCLUSIVE;
+        lockManage.lock(tid, pid, locktype);
+        boolean scan = isscan(tid, pid);
+        //命中时只查哈希表并设置引用位，不加锁
+        Page page = pages.get(pid);
+        if(page != null)
         {
-            locktype = lockManage.locktype(tid,pid);
+            hits.incrementAndGet();
+            accessed(pid);
+            return page;
         }
-        if(!(lruCache.map.containsKey(pid)))
+        misses.incrementAndGet();
+        CompletableFuture<Page> load = new CompletableFuture<>();
+        CompletableFuture<Page> other;
+        while((other = loading.putIfAbsent(pid, load)) != null)
         {
-            //现在用LRUcache代表我们的缓冲池
-            //因为在LRUcache中移除的页面在pages没有移除会导致内存一直变大
-            //根据事务的处理需求加锁
-            if (perm == Permissions.READ_ONLY)
-            {
-                //返回-1说明没有锁
-                if(locktype==-1)
+            //别的线程正在读这个页，等它读完；放弃了的预读返回null，重新登记
+            try {
+                page = other.join();
+            } catch (CompletionException e) {
+                if(e.getCause() instanceof DbException)
                 {
-                    lockManage.lock(tid,pid,0);
+                    throw (DbException) e.getCause();
                 }
+                throw e;
             }
-            else
+            if(page != null)
             {
-                if(locktype==0)
-                {
-                    lockManage.uplock(tid,pid);
-                }
-                else if(locktype==-1)
+                accessed(pid);
+                return page;
+            }
+        }
+        try {
+            //读取线程放入页表后才从loading中删除，所以这里再查一次页表
+            page = pages.get(pid);
+            if(page == null)
+            {
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                page = file.readPage(pid);
+                addpage(pid, page, scan);
+            }
+            load.complete(page);
+            return page;
+        } catch (DbException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(pid, load);
+        }
+    }
+
+    /**
+     * Acquire the same lock as {@link #getPage} but only return the page if
+     * it is already in the buffer pool. Used by readers that decode pages
+     * that are not cached directly from the file: while the lock is held,
+     * a page that is not cached has no uncommitted changes, so its on-disk
+     * image is current.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return the cached page, or null if the page is not in the buffer pool
+     */
+    public Page getCachedPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        int locktype = perm == Permissions.READ_ONLY ? LockManage.SHARED : LockManage.EXCLUSIVE;
+        lockManage.lock(tid, pid, locktype);
+        Page page = pages.get(pid);
+        if(page != null)
+        {
+            hits.incrementAndGet();
+            accessed(pid);
+        }
+        return page;
+    }
+
+    //页被请求：预读的页第一次被请求时记一次预读命中，这次请求就是预读所代替的读，不算作再次访问
+    private void accessed(PageId pid)
+    {
+        if(!prefetched.isEmpty() && prefetched.remove(pid))
+        {
+            prefetchStats.hits.incrementAndGet();
+            return;
+        }
+        replacementPolicy.pageAccessed(pid);
+    }
+
+    /**
+     * Start reading the specified page into the buffer pool on a background
+     * thread, unless it is already cached or being read. No lock is taken:
+     * a page that is not in the buffer pool has no uncommitted changes, so
+     * its on-disk image is the committed one, and the transaction that
+     * later asks for the page still locks it in {@link #getPage}.
+     * <p>
+     * Prefetched pages are added like pages of a sequential scan, so they
+     * are evicted first if nobody asks for them. Prefetching gives up
+     * rather than fail when no clean page can be evicted to make room.
+     *
+     * @param pid the ID of the page to read ahead
+     * @return a future completed with the page once it is in the buffer
+     *         pool, or with null if the page was not prefetched
+     */
+    public CompletableFuture<Page> prefetch(PageId pid) {
+        Page page = pages.get(pid);
+        if(page != null)
+        {
+            return CompletableFuture.completedFuture(page);
+        }
+        CompletableFuture<Page> load = new Prefetch();
+        CompletableFuture<Page> other = loading.putIfAbsent(pid, load);
+        if(other != null)
+        {
+            return other;
+        }
+        prefetchStats.issued.incrementAndGet();
+        try {
+            PREFETCHER.execute(() -> loadprefetch(pid, load));
+        } catch (RejectedExecutionException e) {
+            loading.remove(pid, load);
+            load.complete(null);
+        }
+        return load;
+    }
+
+    //在后台线程中读入预读的页
+    private void loadprefetch(PageId pid,CompletableFuture<Page> load)
+    {
+        Page page = pages.get(pid);
+        boolean reserved = false;
+        try {
+            if(page == null && (reserved = tryreserve()))
+            {
+                Page read = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                //读的过程中页可能被discardPage撤销（磁盘上的版本被直接改写），这时读到的页已经过时，不能放入
+                Page[] added = new Page[1];
+                loading.computeIfPresent(pid, (k, v) -> {
+                    if(v != load)
+                    {
+                        return v;
+                    }
+                    prefetched.add(k);
+                    if(pages.putIfAbsent(k, read) == null)
+                    {
+                        added[0] = read;
+                    }
+                    else
+                    {
+                        prefetched.remove(k);
+                    }
+                    return null;
+                });
+                if(added[0] != null)
                 {
-                    lockManage.lock(tid,pid,1);
+                    reserved = false;
+                    track(pid, true);
                 }
+                page = added[0];
             }
-            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = file.readPage(pid);
-            lruCache.put(pid,page);
+        } catch (RuntimeException e) {
+            //预读失败由之后真正请求这个页的事务报告
+            page = null;
+        } finally {
+            if(reserved)
+            {
+                size.decrementAndGet();
+            }
+            loading.remove(pid, load);
+            load.complete(page);
         }
-        else
-        {
-            if (perm == Permissions.READ_ONLY)
+    }
+
+    //为预读的页预留位置，缓冲池满且淘汰不了干净页时放弃
+    private boolean tryreserve()
+    {
+        for (int i = 0; i <= numPages; i++) {
+            int n = size.get();
+            if(n < numPages)
             {
-                //返回-1说明没有锁
-                if(locktype==-1)
+                if(size.compareAndSet(n, n + 1))
                 {
-                    lockManage.lock(tid,pid,0);
+                    return true;
                 }
             }
             else
             {
-                if(locktype==0)
-                {
-                    lockManage.uplock(tid,pid);
+                try {
+                    evictPage();
+                } catch (DbException e) {
+                    return false;
                 }
-                else if(locktype==-1)
+            }
+        }
+        return false;
+    }
+
+    /** @return maximum number of pages this buffer pool caches */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * Set how many pages sequential scans read ahead of themselves. The
+     * window actually used is capped at a quarter of the buffer pool so
+     * read-ahead cannot push out the rest of the working set; 0 turns
+     * read-ahead off.
+     *
+     * @param pages the read-ahead window in pages
+     */
+    public void setPrefetchWindow(int pages) {
+        prefetchWindow = Math.max(0, pages);
+    }
+
+    /** @return number of pages sequential scans should read ahead of themselves */
+    public int getPrefetchWindow() {
+        return Math.min(prefetchWindow, numPages / 4);
+    }
+
+    /** @return read-ahead counters of this buffer pool */
+    public PrefetchStats getPrefetchStats() {
+        return prefetchStats;
+    }
+
+    //一个事务最近访问的表和页号，以及连续访问的页数
+    private static class ScanState{
+        int tableid;
+        int pageno;
+        int run;
+    }
+
+    //tid是否在顺序扫描pid所在的表：连续请求了同一个表中相邻的页
+    private boolean isscan(TransactionId tid,PageId pid)
+    {
+        ScanState state = scans.get(tid);
+        if(state == null)
+        {
+            state = scans.computeIfAbsent(tid, k -> new ScanState());
+        }
+        if(state.tableid == pid.getTableId() && state.pageno + 1 == pid.getPageNumber())
+        {
+            state.run++;
+        }
+        else if(state.tableid != pid.getTableId() || state.pageno != pid.getPageNumber())
+        {
+            state.run = 0;
+        }
+        state.tableid = pid.getTableId();
+        state.pageno = pid.getPageNumber();
+        return state.run >= SCAN_THRESHOLD;
+    }
+
+    //把页放进缓冲池，缓冲池满时先淘汰一个页
+    private void addpage(PageId pid,Page page,boolean scan) throws DbException
+    {
+        if(pages.replace(pid, page) != null)
+        {
+            return;
+        }
+        //先预留一个位置，满了就淘汰
+        while(true)
+        {
+            int n = size.get();
+            if(n < numPages)
+            {
+                if(size.compareAndSet(n, n + 1))
                 {
-                    lockManage.lock(tid,pid,1);
+                    break;
                 }
             }
+            else
+            {
+                evictPage();
+            }
+        }
+        if(pages.putIfAbsent(pid, page) != null)
+        {
+            //别的线程已经放入了这个页
+            size.decrementAndGet();
+            pages.replace(pid, page);
+            return;
         }
-        return lruCache.map.get(pid).value;
+        track(pid, scan);
+    }
+
+    //把页交给替换策略。交给之前页可能已被discardPage删除，它的pageRemoved落了空，
+    //这时撤回，否则替换策略会为一个不在缓冲池中的页占着位置
+    private void track(PageId pid,boolean scan)
+    {
+        replacementPolicy.pageAdded(pid, scan);
+        if(!pages.containsKey(pid))
+        {
+            replacementPolicy.pageRemoved(pid);
+        }
+    }
 
+    /** @return number of getPage calls served from the buffer pool */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return number of getPage calls that had to read the page from disk */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void resetHitCounters() {
+        hits.set(0);
+        misses.set(0);
     }
 
     /**
@@ -542,8 +1050,7 @@ public class BufferPool {
     public  void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-        lockManage.unlock(tid,pid,0,false);
-        lockManage.unlock(tid,pid,1,true);
+        lockManage.unlock(tid,pid);
     }
 
     /**
@@ -567,49 +1074,67 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit)  {
         // some code goes here
         // not necessary for lab1|lab2
-        Set<Map.Entry<PageId, LRUCache.Node>> entrySet = lruCache.getEntrySet();
         //事务提交，与事务关联的脏页刷新到磁盘
         //要先将脏页写回磁盘，再释放锁
         if(commit)
         {
             //遍历缓冲池的页表把脏页写回磁盘Set<Map.Entry<PageId, Node>>
-            for(Map.Entry<PageId, LRUCache.Node> entry:entrySet)
-            {
-                Page page = entry.getValue().value;
-                DbFile heapFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-                //lab56
-                Page before = page.getBeforeImage();
-
-                //将脏页写回磁盘
-                try {
-                    //lab6
-                    flushPage(page.getId());
-                    page.setBeforeImage();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-                //把有的锁释放
-                unsafeReleasePage(tid, entry.getKey());
+            try {
+                //lab6
+                flushPages(tid);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
         }
-        //回滚事务，先释放锁，再更新缓冲池的数据
+        //回滚事务，先恢复本事务的脏页，再释放锁
         else {
-            for(Map.Entry<PageId, LRUCache.Node> entry:entrySet)
+            for(Map.Entry<PageId, Page> entry:pages.entrySet())
             {
-                //把持有的锁释放
-                unsafeReleasePage(tid, entry.getKey());
-                //脏页则重新读取
-                if(entry.getValue().value.isDirty()!=null)
+                //本事务的脏页则重新读取，其他事务的脏页不能丢弃
+                if(tid.equals(entry.getValue().isDirty()))
                 {
                     //这里注意不能在缓冲池里请求而是磁盘上请求pagid这一页。
                     Page page = null;
                     DbFile file = Database.getCatalog().getDatabaseFile(entry.getKey().getTableId());
                     page = file.readPage(entry.getKey());
                     //在原位替换，而不是添加，添加可能会挤掉一些页面。
-                    lruCache.map.get(entry.getKey()).value = page;
+                    entry.setValue(page);
                 }
             }
         }
+        scans.remove(tid);
+        //把持有的锁全部释放
+        lockManage.unlockall(tid);
+    }
+
+    /**
+     * Set how lock waits are kept from deadlocking. Should be set while no
+     * transaction is waiting for a lock.
+     *
+     * @param policy the deadlock handling policy
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        lockManage.policy = policy;
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return lockManage.policy;
+    }
+
+    /**
+     * Set the base lock wait timeout used by {@link DeadlockPolicy#TIMEOUT}.
+     * Each wait is given a random timeout between millis and 2 * millis so
+     * that transactions which time out together do not retry in lockstep.
+     *
+     * @param millis base timeout in milliseconds
+     */
+    public void setLockTimeout(long millis) {
+        lockManage.timeoutmillis = millis;
+    }
+
+    /** @return lock wait counters of this buffer pool */
+    public LockWaitStats getLockWaitStats() {
+        return lockManage.stats;
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
@@ -671,15 +1196,11 @@ public class BufferPool {
      * @param updatePages 需要变为脏页的页列表
      * @param tid         the transaction to updating.
      */
-    public void updateBufferPool(List<Page> updatePages, TransactionId tid) {
+    public void updateBufferPool(List<Page> updatePages, TransactionId tid) throws DbException {
         for (Page page : updatePages) {
             page.markDirty(true, tid);
             // update bufferPool
-            try {
-                lruCache.put(page.getId(), page);
-            } catch (DbException e) {
-                throw new RuntimeException(e);
-            }
+            addpage(page.getId(), page, false);
         }
     }
 
@@ -691,8 +1212,8 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (Map.Entry<PageId, LRUCache.Node> group : lruCache.getEntrySet()) {
-            Page page = group.getValue().value;
+        for (Map.Entry<PageId, Page> group : pages.entrySet()) {
+            Page page = group.getValue();
             if (page.isDirty() != null) {
                 this.flushPage(group.getKey());
             }
@@ -707,10 +1228,21 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-
+        //撤销正在进行的预读，它可能读到了丢弃之前的旧版本
+        loading.computeIfPresent(pid, (k, v) -> v instanceof Prefetch ? null : v);
+        if(pages.remove(pid) != null)
+        {
+            //先让替换策略放开这个页，再让出位置，占到这个位置的页才一定有空闲的帧
+            replacementPolicy.pageRemoved(pid);
+            size.decrementAndGet();
+            if(prefetched.remove(pid))
+            {
+                prefetchStats.wasted.incrementAndGet();
+            }
+        }
     }
 
     /**
@@ -720,7 +1252,7 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page target = lruCache.get(pid);
+        Page target = pages.get(pid);
         if(target == null){
             return;
         }
@@ -737,9 +1269,9 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (Map.Entry<PageId, LRUCache.Node> group : this.lruCache.getEntrySet()) {
+        for (Map.Entry<PageId, Page> group : this.pages.entrySet()) {
             PageId pid = group.getKey();
-            Page flushPage = group.getValue().value;
+            Page flushPage = group.getValue();
             TransactionId flushPageDirty = flushPage.isDirty();
             Page before = flushPage.getBeforeImage();
             // 涉及到事务就应该setBeforeImage
@@ -756,124 +1288,45 @@ public class BufferPool {
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        //在当前这种结构下不用实现，因为替换了缓冲池，如果将缓冲池和LRUcache的内容同步则要实现
-        //实现方法可以用map()取出page，同步给pages
-    }
-
-    private static class LRUCache {
-        int cap,size;
-        ConcurrentHashMap<PageId,Node> map ;
-        Node head = new Node(null ,null);
-        Node tail = new Node(null ,null);
-
-        public LRUCache(int capacity) {
-            this.cap = capacity;
-            map = new ConcurrentHashMap<>();
-            head.next = tail;
-            tail.prev = head;
-            size = 0;
-        }
-        private class Node
+        //NO STEAL：只淘汰非脏页
+        PageId victim = replacementPolicy.victim(pid -> {
+            Page page = pages.get(pid);
+            return page == null || page.isDirty() == null;
+        });
+        if(victim == null)
         {
-            Node prev;
-            Node next;
-            Page value;
-            PageId key;
-            public Node(Page value,PageId key) {
-                this.key = key;
-                this.value = value;
-            }
-        }
-        public synchronized int getSize(){
-            return this.size;
+            throw new DbException("all pages in the buffer pool are dirty");
         }
-        //放入一个键值对
-        public void put(PageId pid,Page value) throws DbException
+        Page page = pages.get(victim);
+        if(page == null)
         {
-            if(map.containsKey(pid))
-            {
-                map.get(pid).value = value;
-                map.get(pid).key = pid;
-                down(pid);
-            }
-            else
-            {
-                //申请一个结点，放到最上面，并放入map
-                Node newNode = new Node(value,pid);
-                head.next.prev = newNode;
-                newNode.next = head.next;
-                newNode.prev = head;
-                head.next = newNode;
-                map.put(pid,newNode);
-                //根据栈是否满决定是否移除页面
-                if(size < cap)
-                {
-                    //不满，不移动。
-                    size++;
-                }
-                else
-                {
-                    //移动非脏页，首先找到最后使用的非脏页
-                    Node notdirtynode = tail.prev;
-                    while(notdirtynode.value.isDirty() != null && notdirtynode!=head)
-                    {
-                        notdirtynode = notdirtynode.prev;
-                    }
-                    if(notdirtynode != head && notdirtynode != tail)
-                    {
-                        map.remove(notdirtynode.key);
-                        notdirtynode.prev.next = notdirtynode.next;
-                        notdirtynode.next.prev = notdirtynode.prev;
-                        //删除之前要释放锁，但是这里的事务可能不对
-                        Database.getBufferPool().unsafeReleasePage(new TransactionId(),notdirtynode.key);
-                    }
-                    else
-                    {
-                        throw new DbException("没有非脏页");
-                    }
-                }
-            }
+            //已经被discardPage删除
+            return;
         }
-        //将对应的项下移
-        public void down(PageId pid)
+        if(page.isDirty() == null && pages.remove(victim, page))
         {
-            map.get(pid).prev.next = map.get(pid).next;
-            map.get(pid).next.prev = map.get(pid).prev;
-            map.get(pid).next = head.next;
-            head.next.prev = map.get(pid);
-            head.next = map.get(pid);
-            map.get(pid).prev = head;
-        }
-        //取出一个对
-        public Page get(PageId pid)
-        {
-            if(map.containsKey(pid))
+            size.decrementAndGet();
+            if(prefetched.remove(victim))
             {
-                //将该页面提到最上面，在它上面的下降
-                down(pid);
-                return map.get(pid).value;
-            }
-            else
-            {
-                return null;
+                prefetchStats.wasted.incrementAndGet();
             }
         }
-        public Set<Map.Entry<PageId, Node>> getEntrySet(){
-            return map.entrySet();
+        else if(pages.containsKey(victim))
+        {
+            //选中之后被替换或弄脏了，放回替换策略
+            track(victim, false);
         }
     }
 
-
+    //用磁盘上的版本替换缓冲池中的页，页不在缓冲池中时什么也不做
     public void getnewpage(PageId pid)
     {
-        Page page = null;
         DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        page = file.readPage(pid);
+        Page page = file.readPage(pid);
         //在原位替换，而不是添加，添加可能会挤掉一些页面。
-        lruCache.map.get(pid).value = page;
+        pages.replace(pid, page);
     }
 }
-
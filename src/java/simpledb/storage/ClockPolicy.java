@@ -0,0 +1,104 @@
+package simpledb.storage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement without locks. Each cached page owns a
+ * frame with a reference bit; a hit only sets that bit, so concurrent
+ * readers never contend on a shared list. Evicting threads advance a shared
+ * clock hand, clear the reference bits they pass and claim the first
+ * unreferenced evictable frame with a compare-and-set, so several threads
+ * can sweep at the same time.
+ * <p>
+ * Pages read by a sequential scan start with their reference bit clear and
+ * are reclaimed the first time the hand reaches them, unless requested again
+ * in the meantime.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final int numFrames;
+    private final AtomicReferenceArray<PageId> frames;
+    private final AtomicIntegerArray referenced;
+    private final ConcurrentHashMap<PageId, Integer> frameOf = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Integer> freeFrames = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger hand = new AtomicInteger();
+
+    /**
+     * @param numPages the capacity of the buffer pool
+     */
+    public ClockPolicy(int numPages) {
+        this.numFrames = numPages;
+        this.frames = new AtomicReferenceArray<>(numPages);
+        this.referenced = new AtomicIntegerArray(numPages);
+        for (int i = 0; i < numPages; i++) {
+            freeFrames.add(i);
+        }
+    }
+
+    public void pageAdded(PageId pid, boolean scan) {
+        while (!tryAdd(pid, scan)) {
+            // the buffer pool frees a page's frame before its slot, so a frame
+            // is only missing while another thread briefly tracks a page that
+            // was discarded under it; wait for that thread to let it go
+            Thread.yield();
+        }
+    }
+
+    // adding and removing are serialized so that a removal never sees a page
+    // whose frame is only half assigned; hits and the clock hand stay lock-free
+    private synchronized boolean tryAdd(PageId pid, boolean scan) {
+        if (frameOf.containsKey(pid)) {
+            // already tracked, e.g. re-added by another thread after a discard
+            return true;
+        }
+        Integer frame = freeFrames.poll();
+        if (frame == null) {
+            return false;
+        }
+        referenced.set(frame, scan ? 0 : 1);
+        frameOf.put(pid, frame);
+        frames.set(frame, pid);
+        return true;
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        // avoid writing the shared bit when it is already set
+        if (frame != null && referenced.get(frame) == 0) {
+            referenced.set(frame, 1);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null && frames.compareAndSet(frame, pid, null)) {
+            freeFrames.add(frame);
+        }
+    }
+
+    public PageId victim(Predicate<PageId> evictable) {
+        // two full turns clear every reference bit, so a third finds any evictable page
+        for (int i = 0; i < 3 * numFrames; i++) {
+            int frame = Math.floorMod(hand.getAndIncrement(), numFrames);
+            PageId pid = frames.get(frame);
+            if (pid == null) {
+                continue;
+            }
+            if (referenced.get(frame) == 1) {
+                referenced.set(frame, 0);
+                continue;
+            }
+            if (evictable.test(pid) && frames.compareAndSet(frame, pid, null)) {
+                frameOf.remove(pid, frame);
+                freeFrames.add(frame);
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -8,7 +8,12 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -24,6 +29,67 @@ public class HeapFile implements DbFile {
 
     private File file;
     private TupleDesc tupleDesc;
+    /**
+     * 一直打开的文件通道，读写页都用定位读写，不需要seek，多个线程可以同时使用
+     */
+    private volatile FileChannel channel;
+    /**
+     * 缓存的页数，通过本对象追加或写入页时更新，-1表示还没有读过文件大小
+     */
+    private final AtomicInteger pageCount = new AtomicInteger(-1);
+    /**
+     * 为true时顺序扫描直接从映射的文件中解码不在缓冲池中的页
+     */
+    private volatile boolean memoryMapped = false;
+    /**
+     * 文件的只读映射，按段映射以支持超过2GB的文件，文件变长时重新映射最后一段
+     */
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    /**
+     * 空闲空间表，第一次用到时建立
+     */
+    private volatile FreeSpaceMap freeSpaceMap;
+
+    /**
+     * 空闲空间表：记录每页的空槽数和有空槽的页，插入时直接找到有空间的页，
+     * 不用从第0页开始逐页加锁查看。表中的数只是提示，插入时仍然在加了x锁的页上检查，不对时再更正。
+     */
+    private static final class FreeSpaceMap {
+        private int[] free = new int[64];
+        //已经记录的页数，页按页号顺序加入
+        private int size;
+        private final BitSet hasspace = new BitSet();
+
+        synchronized int size() {
+            return size;
+        }
+
+        //记录pageNo的空槽数，pageNo超出已记录的页数时忽略，保证表中没有空洞
+        synchronized void set(int pageNo, int slots) {
+            if (pageNo > size) {
+                return;
+            }
+            if (pageNo == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+            }
+            free[pageNo] = slots;
+            size = Math.max(size, pageNo + 1);
+            hasspace.set(pageNo, slots > 0);
+        }
+
+        synchronized int get(int pageNo) {
+            return pageNo < size ? free[pageNo] : -1;
+        }
+
+        //from开始的第一个有空槽的页，没有返回-1
+        synchronized int find(int from) {
+            return hasspace.nextSetBit(from);
+        }
+
+        synchronized int[] snapshot() {
+            return Arrays.copyOf(free, size);
+        }
+    }
     /**
      * 写在内部类的原因是：DbFileIterator is the iterator interface that all SimpleDB Dbfile should
      */
@@ -36,20 +102,53 @@ public class HeapFile implements DbFile {
          */
         private Iterator<Tuple> tupleIterator;
         private int index;
+        /**
+         * 已经发出预读的最后一页
+         */
+        private int prefetchedto;
+        /**
+         * 扫描的页号范围[first, last)，last为-1时扫描到文件末尾
+         */
+        private final int first;
+        private final int last;
 
         public HeapFileIterator(HeapFile file,TransactionId tid){
+            this(file, tid, 0, -1);
+        }
+
+        public HeapFileIterator(HeapFile file,TransactionId tid,int first,int last){
             this.heapFile = file;
             this.tid = tid;
+            this.first = first;
+            this.last = last;
+        }
+
+        private int end(){
+            return last < 0 ? heapFile.cachedNumPages() : Math.min(last, heapFile.cachedNumPages());
         }
+
         @Override
         public void open() throws DbException, TransactionAbortedException {
-            index = 0;
-            tupleIterator = getTupleIterator(index);
+            index = first;
+            prefetchedto = first;
+            //空的页号范围没有元组
+            tupleIterator = last >= 0 && first >= end() ? null : getTupleIterator(index);
         }
 
         private Iterator<Tuple> getTupleIterator(int pageNumber) throws TransactionAbortedException, DbException{
-            if(pageNumber >= 0 && pageNumber < heapFile.numPages()){
+            if(pageNumber >= 0 && pageNumber < heapFile.cachedNumPages()){
                 HeapPageId pid = new HeapPageId(heapFile.getId(),pageNumber);
+                if(heapFile.memoryMapped){
+                    //仍然要加读锁；缓冲池中的版本可能更新，只有不在缓冲池中的页才从映射中读
+                    Page cached = Database.getBufferPool().getCachedPage(tid, pid, Permissions.READ_ONLY);
+                    if(cached != null){
+                        return ((HeapPage) cached).iterator();
+                    }
+                    return heapFile.mappedIterator(pid);
+                }
+                if(pageNumber > first){
+                    readahead(pageNumber);
+                }
                 HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
                 return page.iterator();
             }else{
@@ -57,6 +156,16 @@ public class HeapFile implements DbFile {
             }
         }
 
+        //读到第二页说明在顺序扫描，让后面window个页在后台读入缓冲池
+        private void readahead(int pageNumber){
+            BufferPool bufferPool = Database.getBufferPool();
+            int to = Math.min(pageNumber + bufferPool.getPrefetchWindow(), end() - 1);
+            for (int i = Math.max(prefetchedto, pageNumber) + 1; i <= to; i++) {
+                bufferPool.prefetch(new HeapPageId(heapFile.getId(), i));
+            }
+            prefetchedto = Math.max(prefetchedto, to);
+        }
+
         @Override
         public boolean hasNext() throws DbException, TransactionAbortedException {
             if (tupleIterator == null) {
@@ -65,7 +174,7 @@ public class HeapFile implements DbFile {
 
             while (!tupleIterator.hasNext()) {
                 index++;
-                if (index < heapFile.numPages()) {
+                if (index < end()) {
                     tupleIterator = getTupleIterator(index);
                 } else {
                     return false;
@@ -143,32 +252,50 @@ public class HeapFile implements DbFile {
         return this.tupleDesc;
     }
 
+    /**
+     * 打开（只在第一次调用时）并返回这个文件的通道
+     */
+    private FileChannel channel() throws IOException {
+        FileChannel c = channel;
+        if (c == null) {
+            synchronized (this) {
+                c = channel;
+                if (c == null) {
+                    c = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channel = c;
+                }
+            }
+        }
+        return c;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        RandomAccessFile raf = null;
         HeapPageId hpid = (HeapPageId) pid;
         int pno = hpid.getPageNumber();
-        long offset = pno * BufferPool.getPageSize();
+        long offset = (long) pno * BufferPool.getPageSize();
         byte[] data = new byte[BufferPool.getPageSize()];
         try{
-            raf = new RandomAccessFile(file, "r");
-            raf.seek(offset);
-            raf.readFully(data);
-            Page page = new HeapPage(hpid, data);
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            FileChannel c = channel();
+            while (buf.hasRemaining()) {
+                if (c.read(buf, offset + buf.position()) < 0) {
+                    throw new IllegalArgumentException(String.format("table %d page %d is invalid", hpid.getTableId(), pno));
+                }
+            }
+            HeapPage page = new HeapPage(hpid, data);
+            //从磁盘读入的是已提交的版本，顺便更正空闲空间表（回滚时也经过这里）
+            FreeSpaceMap fsm = freeSpaceMap;
+            if (fsm != null) {
+                fsm.set(pno, page.getNumEmptySlots());
+            }
             return page;
         }catch (IOException e){
             e.printStackTrace();
-        }finally {
-            try{
-                if(raf != null){
-                    raf.close();
-                }
-            }catch (Exception e){
-                e.printStackTrace();
-            }
         }
-        throw new IllegalArgumentException(String.format("table %d page %d is invalid", hpid, pno));
+        throw new IllegalArgumentException(String.format("table %d page %d is invalid", hpid.getTableId(), pno));
     }
 
     // see DbFile.java for javadocs
@@ -177,82 +304,241 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
         PageId pageId = page.getId();
         int pageNo = pageId.getPageNumber();
-        int offset = pageNo * BufferPool.getPageSize();
+        long offset = (long) pageNo * BufferPool.getPageSize();
         byte[] pageData = page.getPageData();
 
-        RandomAccessFile file = new RandomAccessFile(this.file, "rw");
-        file.seek(offset);
-        file.write(pageData);
-        file.close();
+        ByteBuffer buf = ByteBuffer.wrap(pageData);
+        FileChannel c = channel();
+        while (buf.hasRemaining()) {
+            c.write(buf, offset + buf.position());
+        }
+        //先保证页数已经从文件读出，再计入可能新增的页
+        cachedNumPages();
+        pageCount.accumulateAndGet(pageNo + 1, Math::max);
+        FreeSpaceMap fsm = freeSpaceMap;
+        if (fsm != null && page instanceof HeapPage) {
+            fsm.set(pageNo, ((HeapPage) page).getNumEmptySlots());
+        }
 
         page.markDirty(false, null);
     }
 
+    /**
+     * 返回空闲空间表，第一次调用时先尝试读入保存的表
+     */
+    private FreeSpaceMap freeSpaceMap() {
+        FreeSpaceMap fsm = freeSpaceMap;
+        if (fsm == null) {
+            synchronized (this) {
+                fsm = freeSpaceMap;
+                if (fsm == null) {
+                    fsm = loadFreeSpaceMap();
+                    freeSpaceMap = fsm;
+                }
+            }
+        }
+        return fsm;
+    }
+
+    /**
+     * 把空闲空间表还没有记录的页（表刚建立，或者文件被从外部追加了页）加入表中，
+     * 只读每页的头部
+     */
+    private void growFreeSpaceMap(FreeSpaceMap fsm, int numPages) throws IOException {
+        FileChannel c = channel();
+        synchronized (fsm) {
+            int numSlots = HeapPage.getNumTuples(tupleDesc);
+            byte[] header = new byte[HeapPage.getHeaderSize(tupleDesc)];
+            for (int i = fsm.size(); i < numPages; i++) {
+                Arrays.fill(header, (byte) 0);
+                ByteBuffer buf = ByteBuffer.wrap(header);
+                long offset = (long) i * BufferPool.getPageSize();
+                while (buf.hasRemaining() && c.read(buf, offset + buf.position()) >= 0) {
+                }
+                fsm.set(i, HeapPage.getNumEmptySlots(header, numSlots));
+            }
+        }
+    }
+
+    /**
+     * 保存空闲空间表的文件
+     */
+    private File freeSpaceMapFile() {
+        return new File(file.getPath() + ".fsm");
+    }
+
+    /**
+     * Writes the free-space map of this file next to it, as
+     * <code>&lt;file&gt;.fsm</code>, so that a HeapFile later opened on the
+     * same file starts from the saved map instead of reading the header of
+     * every page. The saved map is only used while the heap file is not
+     * modified after it and has the same number of pages.
+     */
+    public void saveFreeSpaceMap() throws IOException {
+        FreeSpaceMap fsm = freeSpaceMap();
+        growFreeSpaceMap(fsm, numPages());
+        int[] free = fsm.snapshot();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(freeSpaceMapFile())))) {
+            out.writeInt(free.length);
+            for (int slots : free) {
+                out.writeInt(slots);
+            }
+        }
+    }
+
+    /**
+     * 读入保存的空闲空间表；没有保存、已经过时或者读不了时返回空表，由growFreeSpaceMap从文件建立
+     */
+    private FreeSpaceMap loadFreeSpaceMap() {
+        File saved = freeSpaceMapFile();
+        if (!saved.exists() || saved.lastModified() < file.lastModified()) {
+            return new FreeSpaceMap();
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(saved)))) {
+            int n = in.readInt();
+            if (n != numPages()) {
+                return new FreeSpaceMap();
+            }
+            FreeSpaceMap fsm = new FreeSpaceMap();
+            for (int i = 0; i < n; i++) {
+                fsm.set(i, in.readInt());
+            }
+            return fsm;
+        } catch (IOException e) {
+            return new FreeSpaceMap();
+        }
+    }
+
+    /**
+     * Returns the number of empty slots the free-space map records for a
+     * page, or -1 if the page is not in the map yet.
+     */
+    public int getFreeSlots(int pageNo) {
+        return freeSpaceMap().get(pageNo);
+    }
+
+    /**
+     * 在文件末尾写一个空页，别的事务在seen之后已经追加过页时不再追加
+     */
+    private synchronized void appendEmptyPage(FreeSpaceMap fsm, int seen) throws IOException {
+        int pageNo = numPages();
+        if (pageNo > seen) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(HeapPage.createEmptyPageData());
+        long offset = (long) pageNo * BufferPool.getPageSize();
+        FileChannel c = channel();
+        while (buf.hasRemaining()) {
+            c.write(buf, offset + buf.position());
+        }
+        pageCount.accumulateAndGet(pageNo + 1, Math::max);
+        growFreeSpaceMap(fsm, pageNo + 1);
+    }
+
+    /**
+     * Turns the memory-mapped read path on or off. When on, iterators decode
+     * tuples of pages that are not in the BufferPool straight from a
+     * read-only mapping of the file, without copying the page into a byte
+     * array or building a HeapPage. Locks are still taken through the
+     * BufferPool, and cached pages, which may hold uncommitted changes of the
+     * reading transaction, are still read from the BufferPool.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * 返回一个直接从文件映射中解码pid上元组的迭代器
+     */
+    private Iterator<Tuple> mappedIterator(HeapPageId pid) throws DbException {
+        int pageSize = BufferPool.getPageSize();
+        int pagesPerSegment = Integer.MAX_VALUE / pageSize;
+        int segment = pid.getPageNumber() / pagesPerSegment;
+        int offset = (pid.getPageNumber() % pagesPerSegment) * pageSize;
+        ByteBuffer buf;
+        synchronized (segments) {
+            while (segments.size() <= segment) {
+                segments.add(null);
+            }
+            buf = segments.get(segment);
+            if (buf == null || buf.capacity() < offset + pageSize) {
+                try {
+                    long start = (long) segment * pagesPerSegment * pageSize;
+                    long length = Math.min((long) pagesPerSegment * pageSize, channel().size() - start);
+                    if (length < offset + pageSize) {
+                        throw new DbException(String.format("table %d page %d is invalid", pid.getTableId(), pid.getPageNumber()));
+                    }
+                    MappedByteBuffer mapped = channel().map(FileChannel.MapMode.READ_ONLY, start, length);
+                    segments.set(segment, mapped);
+                    buf = mapped;
+                } catch (IOException e) {
+                    throw new DbException(e.getMessage());
+                }
+            }
+        }
+        return HeapPage.iterator(pid, tupleDesc, buf, offset);
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
+     * Re-reads the size of the open file, so pages appended to the file
+     * without going through this HeapFile are counted as well.
      */
     public int numPages() {
         // some code goes here
-        int filesize = (int) file.length();
-        int numPages = filesize / BufferPool.getPageSize();
-        return numPages;
+        try {
+            int filePages = (int) (channel().size() / BufferPool.getPageSize());
+            return pageCount.accumulateAndGet(filePages, Math::max);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 返回缓存的页数，第一次调用时读取文件大小
+     */
+    int cachedNumPages() {
+        int n = pageCount.get();
+        return n >= 0 ? n : numPages();
     }
 
     // see DbFile.java for javadocs
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        ArrayList<Page> pages = new ArrayList<>();
-        int flagIsInsert = 0;
-        for(int i = 0; i < numPages(); i++){
-            HeapPageId heapPageId = new HeapPageId(getId(),i);
-            HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_WRITE);
-            if(heapPage.getNumEmptySlots() == 0)
-            {
-                //在暂时找不到空槽的时候释放锁
-                Database.getBufferPool().unsafeReleasePage(tid,heapPageId);
-                continue;
+        BufferPool bufferPool = Database.getBufferPool();
+        FreeSpaceMap fsm = freeSpaceMap();
+        while (true) {
+            int numPages = numPages();
+            growFreeSpaceMap(fsm, numPages);
+            //只看空闲空间表中有空槽的页
+            for (int i = fsm.find(0); i >= 0 && i < numPages; i = fsm.find(i + 1)) {
+                HeapPageId heapPageId = new HeapPageId(getId(), i);
+                boolean held = bufferPool.holdsLock(tid, heapPageId);
+                HeapPage heapPage = (HeapPage) bufferPool.getPage(tid, heapPageId, Permissions.READ_WRITE);
+                if (heapPage.getNumEmptySlots() == 0) {
+                    //表中的数过时了，更正后接着找；为了查看才加的锁可以提前释放
+                    fsm.set(i, 0);
+                    if (!held) {
+                        bufferPool.unsafeReleasePage(tid, heapPageId);
+                    }
+                    continue;
+                }
+                heapPage.insertTuple(t);
+                fsm.set(i, heapPage.getNumEmptySlots());
+                ArrayList<Page> pages = new ArrayList<>();
+                pages.add(heapPage);
+                return pages;
             }
-            heapPage.insertTuple(t);
-            pages.add(heapPage);
-            return pages;
-//            flagIsInsert = 1;
+            //没有空槽，在文件末尾追加一个空页后重新查找
+            appendEmptyPage(fsm, numPages);
         }
-        BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(file,true));
-        byte[] data = new byte[BufferPool.getPageSize()];
-        data = HeapPage.createEmptyPageData();
-        bw.write(data);
-        bw.close();
-        //缓存进缓冲池
-        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,new HeapPageId(getId(),numPages()-1),Permissions.READ_WRITE);
-        p.insertTuple(t);
-        pages.add(p);
-        return pages;
-//        HeapPageId pageId = new HeapPageId(getId(),numPages());
-//        HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-//        if(heapPage.getNumEmptySlots() != 0)
-//        {
-//            heapPage.insertTuple(t);
-//            int i=0;
-//            for( i=0;i<heapPage.getNumEmptySlots();i++){
-//                if(!heapPage.isSlotUsed(i))
-//                {
-//                    heapPage.insertTuple(t);
-//                }
-//            }
-//            RecordId recordId = new RecordId(heapPage.getId(),i);
-//            t.setRecordId(recordId);
-//            return Collections.singletonList(heapPage);
-//        }
-//        else
-//        {
-//            byte[] newEmptypagedata = HeapPage.createEmptyPageData();
-//            HeapPage newEmptyPage = new HeapPage(pageId,newEmptypagedata);
-//            RecordId recordId = new RecordId(newEmptyPage.getId(),0);
-//            t.setRecordId(recordId);
-//            return Collections.singletonList(heapPage);
-//        }
-        //return null;
         // not necessary for lab1
     }
 
@@ -264,6 +550,7 @@ public class HeapFile implements DbFile {
         int tupleno = t.getRecordId().getTupleNumber();
         HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
         heapPage.deleteTuple(t);
+        freeSpaceMap().set(pageId.getPageNumber(), heapPage.getNumEmptySlots());
         return Collections.singletonList(heapPage);
     }
 
@@ -273,5 +560,19 @@ public class HeapFile implements DbFile {
         return  new HeapFileIterator(this,tid);
     }
 
+    /**
+     * Returns an iterator over the tuples on pages [fromPage, toPage) of
+     * this file, so that different threads can scan different parts of the
+     * file as part of the same transaction.
+     *
+     * @param tid the transaction the scan is running as a part of
+     * @param fromPage the first page to scan
+     * @param toPage one past the last page to scan; pages past the end of the
+     *            file are ignored
+     */
+    public DbFileIterator iterator(TransactionId tid, int fromPage, int toPage) {
+        return new HeapFileIterator(this, tid, fromPage, toPage);
+    }
+
 }
 
@@ -3,6 +3,7 @@ package simpledb.storage;
 import simpledb.common.*;
 import simpledb.transaction.TransactionId;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.io.*;
 
@@ -76,10 +77,13 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {
         // some code goes here
+        return getNumTuples(td);
+    }
+
+    static int getNumTuples(TupleDesc td) {
         double result = (double)(BufferPool.getPageSize()*8/(td.getSize()*8+1));
         int numTuples = (int)floor(result);
         return numTuples;
-
     }
 
     /**
@@ -88,7 +92,11 @@ public class HeapPage implements Page {
      */
     private int getHeaderSize() {
         // some code goes here
-        double result = (double)getNumTuples()/8;
+        return getHeaderSize(td);
+    }
+
+    static int getHeaderSize(TupleDesc td) {
+        double result = (double)getNumTuples(td)/8;
         int headNums = (int)ceil(result);
         return headNums;
     }
@@ -328,13 +336,21 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int numEmptySlots = 0;
-        for (int i=0; i<getNumTuples(); i++) {
-            if(isSlotUsed(i)) {
-                numEmptySlots++;
-            }
+        return getNumEmptySlots(header, numSlots);
+    }
+
+    /**
+     * 按头部位图统计空槽数，只看前numSlots位
+     */
+    static int getNumEmptySlots(byte[] header, int numSlots) {
+        int used = 0;
+        for (int i = 0; i < numSlots / 8; i++) {
+            used += Integer.bitCount(header[i] & 0xff);
+        }
+        if (numSlots % 8 != 0) {
+            used += Integer.bitCount(header[numSlots / 8] & ((1 << (numSlots % 8)) - 1));
         }
-        return getNumTuples()-numEmptySlots;
+        return numSlots - used;
     }
 
     /**
@@ -375,6 +391,53 @@ public class HeapPage implements Page {
         header[Bytelocal] = (byte)(temp);
     }
 
+    /**
+     * Returns an iterator that decodes the tuples of a page straight from
+     * its on-disk image, without building a HeapPage. Tuples are decoded
+     * one at a time as the iterator advances.
+     *
+     * @param pid the id of the page
+     * @param td the TupleDesc of the table
+     * @param buf a buffer holding the page image
+     * @param offset the offset of the page in buf
+     */
+    static Iterator<Tuple> iterator(HeapPageId pid, TupleDesc td, ByteBuffer buf, int offset) {
+        final int numSlots = getNumTuples(td);
+        final int tupleStart = offset + getHeaderSize(td);
+        return new Iterator<Tuple>() {
+            int slot = nextUsed(0);
+
+            private int nextUsed(int i) {
+                for (; i < numSlots; i++) {
+                    if (((buf.get(offset + i / 8) >> (i % 8)) & 1) == 1) {
+                        return i;
+                    }
+                }
+                return numSlots;
+            }
+
+            public boolean hasNext() {
+                return slot < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = new Tuple(td);
+                t.setRecordId(new RecordId(pid, slot));
+                int pos = tupleStart + slot * td.getSize();
+                for (int j = 0; j < td.numFields(); j++) {
+                    Type type = td.getFieldType(j);
+                    t.setField(j, type.parse(buf, pos));
+                    pos += type.getLen();
+                }
+                slot = nextUsed(slot + 1);
+                return t;
+            }
+        };
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
@@ -0,0 +1,73 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * Least recently used replacement. Pages read by a sequential scan go to a
+ * separate FIFO ring instead of the LRU list; the ring is evicted from first
+ * once it is full, and a ring page that is requested again moves to the LRU
+ * list.
+ */
+public class LRUPolicy implements ReplacementPolicy {
+
+    private final int ringSize;
+    // access-ordered, eldest first
+    private final LinkedHashMap<PageId, Boolean> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashSet<PageId> ring = new LinkedHashSet<>();
+
+    /**
+     * @param numPages the capacity of the buffer pool
+     */
+    public LRUPolicy(int numPages) {
+        this.ringSize = Math.max(1, numPages / 8);
+    }
+
+    public synchronized void pageAdded(PageId pid, boolean scan) {
+        if (scan) {
+            ring.add(pid);
+        } else {
+            lru.put(pid, Boolean.TRUE);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        if (ring.remove(pid)) {
+            lru.put(pid, Boolean.TRUE);
+        } else {
+            lru.get(pid);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        ring.remove(pid);
+        lru.remove(pid);
+    }
+
+    public synchronized PageId victim(Predicate<PageId> evictable) {
+        if (ring.size() >= ringSize) {
+            PageId pid = removeFirst(ring.iterator(), evictable);
+            if (pid != null) {
+                return pid;
+            }
+        }
+        PageId pid = removeFirst(lru.keySet().iterator(), evictable);
+        if (pid == null) {
+            pid = removeFirst(ring.iterator(), evictable);
+        }
+        return pid;
+    }
+
+    static PageId removeFirst(Iterator<PageId> it, Predicate<PageId> evictable) {
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -12,7 +12,13 @@ import java.beans.beancontext.BeanContext;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -103,6 +109,16 @@ public class LogFile {
     static List<Long> tidoffsets = new ArrayList<>();
     ConcurrentHashMap<Long,Long> tidlists = new ConcurrentHashMap<>();
 
+    //组提交：提交者写完提交记录后等待写日志线程把这一批记录一起刷盘
+    private boolean groupCommit = false; //protected by this
+    private long groupCommitDelayMicros = 0; //protected by this
+    //当前这一批提交等待的刷盘
+    private CompletableFuture<Void> pendingForce = new CompletableFuture<>(); //protected by this
+    private int pendingCommits = 0; //protected by this
+    private Thread logWriter; //protected by this
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong forces = new AtomicLong();
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -183,17 +199,141 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        CompletableFuture<Void> batch;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            raf.writeInt(COMMIT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            tidToFirstLogRecord.remove(tid.getId());
+            commits.incrementAndGet();
+            if (!groupCommit) {
+                force();
+                return;
+            }
+            //记录已经写入，加入当前这一批，由写日志线程统一刷盘
+            batch = pendingForce;
+            pendingCommits++;
+            notifyAll();
+        }
+        try {
+            batch.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for commit of " + tid.getId());
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * Turn group commit on or off. With group commit, logCommit appends its
+     * commit record and then waits while a background log-writer thread
+     * forces the log once for all the commits that arrived since its last
+     * force, so concurrent committers share one fsync. logCommit still
+     * returns only after its commit record is on disk.
+     *
+     * @param enabled whether commits should be forced in batches
+     */
+    public synchronized void setGroupCommit(boolean enabled) {
+        groupCommit = enabled;
+        if (enabled && logWriter == null) {
+            logWriter = new Thread(this::logwriter, "simpledb-log-writer");
+            logWriter.setDaemon(true);
+            logWriter.start();
+        }
+        notifyAll();
+    }
+
+    public synchronized boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * Set how long the log writer waits, after the first commit of a batch
+     * arrives, for more commits to join the batch before it forces the log.
+     * With 0, the default, it forces as soon as it is free; commits that
+     * arrive while a force is in progress still make up the next batch.
+     *
+     * @param micros the maximum extra commit latency, in microseconds
+     */
+    public synchronized void setGroupCommitDelay(long micros) {
+        groupCommitDelayMicros = Math.max(0, micros);
+    }
+
+    /** @return number of commit records written */
+    public long getCommits() {
+        return commits.get();
+    }
+
+    /** @return number of times the log was forced to disk */
+    public long getForces() {
+        return forces.get();
+    }
+
+    //写日志线程：有提交在等待时，先等一小段时间凑成一批，再一次刷盘并唤醒这一批的提交者
+    private void logwriter() {
+        while (true) {
+            long delay;
+            synchronized (this) {
+                while (pendingCommits == 0 && groupCommit) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                if (pendingCommits == 0) {
+                    //组提交已关闭，也没有等待的提交
+                    logWriter = null;
+                    return;
+                }
+                delay = groupCommitDelayMicros;
+            }
+            if (delay > 0) {
+                try {
+                    TimeUnit.MICROSECONDS.sleep(delay);
+                } catch (InterruptedException ignored) {
+                }
+            }
+            CompletableFuture<Void> batch;
+            synchronized (this) {
+                batch = pendingForce;
+                pendingForce = new CompletableFuture<>();
+                pendingCommits = 0;
+            }
+            try {
+                forcelog();
+                batch.complete(null);
+            } catch (IOException e) {
+                batch.completeExceptionally(e);
+            }
+        }
+    }
+
+    //不持有this刷盘，刷盘期间其他事务可以继续写日志；截断或恢复换了raf时用新的raf再刷一次
+    private void forcelog() throws IOException {
+        while (true) {
+            FileChannel channel;
+            synchronized (this) {
+                channel = raf.getChannel();
+            }
+            try {
+                channel.force(true);
+                forces.incrementAndGet();
+                return;
+            } catch (ClosedChannelException e) {
+                synchronized (this) {
+                    if (raf.getChannel() == channel) {
+                        throw e;
+                    }
+                }
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -521,6 +661,9 @@ public class LogFile {
         extensive recovery.)
     */
     public synchronized void shutdown() {
+        //写日志线程刷完等待中的提交后退出
+        groupCommit = false;
+        notifyAll();
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
             raf.close();
@@ -726,6 +869,7 @@ public class LogFile {
 
     public  synchronized void force() throws IOException {
         raf.getChannel().force(true);
+        forces.incrementAndGet();
     }
 
 }
@@ -0,0 +1,48 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool evicts when it is
+ * full. The BufferPool owns the pages themselves; a policy only tracks the
+ * ids of the pages that are cached and the order in which they were used.
+ * <p>
+ * Pages brought in by a detected sequential scan are added with
+ * <code>scan</code> set. A policy should keep such pages in a small ring of
+ * its own so that a large scan cannot flush the hot pages used by point
+ * lookups.
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Called after a page is added to the buffer pool. A page that is
+     * already tracked may be added again and must not be tracked twice.
+     *
+     * @param pid the id of the page that was added
+     * @param scan true if the page was read by a sequential scan
+     */
+    void pageAdded(PageId pid, boolean scan);
+
+    /**
+     * Called when a cached page is requested again.
+     *
+     * @param pid the id of the page that was requested
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Called after a page is removed from the buffer pool for any reason
+     * other than being chosen by {@link #victim}.
+     *
+     * @param pid the id of the page that was removed
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Chooses a page to evict and stops tracking it.
+     *
+     * @param evictable tells whether a page may be evicted (e.g. is not dirty)
+     * @return the id of the page to evict, or null if no page may be evicted
+     */
+    PageId victim(Predicate<PageId> evictable);
+}
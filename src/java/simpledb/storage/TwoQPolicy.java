@@ -0,0 +1,98 @@
+package simpledb.storage;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * Scan resistant 2Q replacement (Johnson and Shasha, VLDB '94).
+ * <p>
+ * A page seen for the first time enters A1in, a FIFO of about a quarter of
+ * the pool. When it leaves A1in its id is remembered in the A1out ghost
+ * list. Only a page that is requested again while its id is in A1out is
+ * considered hot and goes to Am, an LRU list holding the rest of the pool.
+ * A page touched once, as by a scan, therefore never displaces Am. Pages
+ * read by a detected scan stay in A1in but are not remembered in A1out, so
+ * repeating the scan does not promote them either, and once a scan holds
+ * an eighth of the pool it evicts its own pages first.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    private final int kin;
+    private final int kout;
+    private final int ringSize;
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<>();
+    // pages of a1in that were read by a scan
+    private final LinkedHashSet<PageId> scanned = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    // access-ordered, eldest first
+    private final LinkedHashMap<PageId, Boolean> am = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param numPages the capacity of the buffer pool
+     */
+    public TwoQPolicy(int numPages) {
+        this.kin = Math.max(1, numPages / 4);
+        this.kout = Math.max(1, numPages / 2);
+        this.ringSize = Math.max(1, numPages / 8);
+    }
+
+    public synchronized void pageAdded(PageId pid, boolean scan) {
+        if (!scan && a1out.remove(pid)) {
+            am.put(pid, Boolean.TRUE);
+        } else {
+            a1in.add(pid);
+            if (scan) {
+                scanned.add(pid);
+            }
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // a hit in a1in is a correlated reference and does not promote
+        scanned.remove(pid);
+        am.get(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        a1in.remove(pid);
+        scanned.remove(pid);
+        am.remove(pid);
+    }
+
+    public synchronized PageId victim(Predicate<PageId> evictable) {
+        // pages of a scan are recycled within a small ring of their own
+        PageId pid = null;
+        if (scanned.size() >= ringSize) {
+            pid = LRUPolicy.removeFirst(scanned.iterator(), evictable);
+            if (pid != null) {
+                a1in.remove(pid);
+                return pid;
+            }
+        }
+        if (a1in.size() >= kin || am.isEmpty()) {
+            pid = LRUPolicy.removeFirst(a1in.iterator(), evictable);
+            if (pid != null) {
+                if (!scanned.remove(pid)) {
+                    remember(pid);
+                }
+                return pid;
+            }
+        }
+        pid = LRUPolicy.removeFirst(am.keySet().iterator(), evictable);
+        if (pid == null) {
+            pid = LRUPolicy.removeFirst(a1in.iterator(), evictable);
+            if (pid != null && !scanned.remove(pid)) {
+                remember(pid);
+            }
+        }
+        return pid;
+    }
+
+    private void remember(PageId pid) {
+        a1out.add(pid);
+        if (a1out.size() > kout) {
+            a1out.remove(a1out.iterator().next());
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	@Before
+	public void setUp() {
+		// small pages, so that a few thousand tuples make a tree several levels deep
+		BufferPool.setPageSize(256);
+		Database.reset();
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static BTreeFile emptyFile() throws Exception {
+		File file = File.createTempFile("bulk", ".dat");
+		file.deleteOnExit();
+		return BTreeUtility.openBTreeFile(2, file, 0);
+	}
+
+	// rows of (key, row number) with keys below maxKey, in ascending order of the key
+	private static List<List<Integer>> sortedRows(int rows, int maxKey, long seed) {
+		Random r = new Random(seed);
+		List<List<Integer>> data = new ArrayList<>();
+		for (int i = 0; i < rows; i++)
+			data.add(Arrays.asList(r.nextInt(maxKey), i));
+		data.sort(Comparator.comparing(row -> row.get(0)));
+		return data;
+	}
+
+	private List<List<Integer>> scan(BTreeFile bf) throws Exception {
+		List<List<Integer>> rows = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			rows.add(BTreeUtility.tupleToList(it.next()));
+		it.close();
+		return rows;
+	}
+
+	/**
+	 * Trees of many sizes and fill factors hold the tuples in order, with
+	 * valid parent and sibling pointers and every page but the root at least
+	 * half full.
+	 */
+	@Test
+	public void loadSorted() throws Exception {
+		int[] sizes = {0, 1, 29, 30, 31, 45, 61, 500, 931, 3000};
+		double[] fillFactors = {0.5, 0.7, 1.0};
+		for (int rows : sizes) {
+			for (double fill : fillFactors) {
+				List<List<Integer>> data = sortedRows(rows, rows / 3 + 1, rows);
+				BTreeFile bf = emptyFile();
+				BTreeBulkLoader loader = new BTreeBulkLoader(bf, fill);
+				for (List<Integer> row : data)
+					loader.add(BTreeUtility.getBTreeTuple(row));
+				loader.finish();
+
+				String msg = rows + " rows, fill factor " + fill;
+				BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+				assertEquals(msg, data, scan(bf));
+				if (rows > 0) {
+					int key = data.get(rows / 2).get(0);
+					DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+					it.open();
+					int found = 0;
+					while (it.hasNext()) {
+						assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+						found++;
+					}
+					it.close();
+					long expected = data.stream().filter(row -> row.get(0) == key).count();
+					assertEquals(msg, expected, found);
+				}
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+	}
+
+	/**
+	 * Unsorted input is sorted before it is loaded, and a tree loaded below
+	 * a fill factor of 1 takes further inserts.
+	 */
+	@Test
+	public void loadUnsortedThenInsert() throws Exception {
+		int[] data = new int[2000 * 2];
+		Random r = new Random(7);
+		for (int i = 0; i < 2000; i++) {
+			data[2 * i] = r.nextInt(500);
+			data[2 * i + 1] = i;
+		}
+		BTreeFile bf = emptyFile();
+		bf.bulkLoad(TestUtil.createTupleList(2, data), false, 0.7);
+		// room for the pages dirtied by the inserts
+		Database.resetBufferPool(500);
+		for (int i = 0; i < 200; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {r.nextInt(500), -i}));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		List<List<Integer>> rows = scan(bf);
+		assertEquals(2200, rows.size());
+		for (int i = 1; i < rows.size(); i++)
+			assertTrue(rows.get(i - 1).get(0) <= rows.get(i).get(0));
+	}
+
+	@Test(expected = DbException.class)
+	public void outOfOrder() throws Exception {
+		BTreeBulkLoader loader = new BTreeBulkLoader(emptyFile(), 1.0);
+		loader.add(BTreeUtility.getBTreeTuple(new int[] {2, 0}));
+		loader.add(BTreeUtility.getBTreeTuple(new int[] {1, 1}));
+	}
+
+	/**
+	 * Rebuilding a tree registers the new tree under the same name, with the
+	 * same tuples.
+	 */
+	@Test
+	public void rebuild() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 3000, null, tuples, 0);
+		String name = Database.getCatalog().getTableName(bf.getId());
+		List<List<Integer>> before = scan(bf);
+
+		File file = File.createTempFile("rebuilt", ".dat");
+		file.deleteOnExit();
+		BTreeFile rebuilt = bf.rebuild(tid, file, 0.8);
+		assertEquals(rebuilt.getId(), Database.getCatalog().getTableId(name));
+		BTreeChecker.checkRep(rebuilt, tid, new HashMap<>(), true);
+		assertEquals(before, scan(rebuilt));
+		assertEquals(3000, before.size());
+	}
+
+	/**
+	 * A writer that reaches the retired B+ tree after a rebuild is rejected
+	 * instead of losing its write, and the new tree still takes writes.
+	 */
+	@Test
+	public void writeToRetiredTreeFails() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 500, null, null, 0);
+		File file = File.createTempFile("rebuilt", ".dat");
+		file.deleteOnExit();
+		BTreeFile rebuilt = bf.rebuild(tid, file, 0.8);
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		Tuple t = BTreeUtility.getBTreeTuple(new int[] {1, 2});
+		try {
+			bf.insertTuple(tid, t);
+			fail("expected a DbException writing to the retired tree");
+		} catch (DbException e) {
+			// expected
+		}
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		rebuilt.insertTuple(tid, t);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -0,0 +1,163 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompressedKeyTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+
+	private TransactionId tid;
+	private BTreeFile bf;
+
+	@Before
+	public void setUp() throws Exception {
+		// room for the pages dirtied by a few thousand inserts
+		Database.resetBufferPool(1000);
+		File file = File.createTempFile("strings", ".dat");
+		file.delete();
+		file.deleteOnExit();
+		bf = new BTreeFile(file, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private static Tuple tuple(String key, int value) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(key, Type.STRING_LEN));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	// keys with a long common prefix, as in many real string keys
+	private static List<String> keys(int n) {
+		Random r = new Random(11);
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			StringBuilder sb = new StringBuilder(String.format("customer/%08d/", r.nextInt(100000000)));
+			for (int j = r.nextInt(40); j > 0; j--)
+				sb.append('x');
+			keys.add(sb.toString());
+		}
+		return keys;
+	}
+
+	private List<String> scan() throws Exception {
+		List<String> found = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			found.add(((StringField) it.next().getField(0)).getValue());
+		it.close();
+		return found;
+	}
+
+	private BTreeInternalPage root() throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), simpledb.common.Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		return (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(),
+				simpledb.common.Permissions.READ_ONLY);
+	}
+
+	/**
+	 * A new B+ tree keyed on a string has compressed internal pages, which
+	 * hold several times as many entries as uncompressed ones, so that a few
+	 * thousand keys need only one level above the leaves.
+	 */
+	@Test
+	public void insertAndSearch() throws Exception {
+		List<String> keys = keys(3000);
+		for (int i = 0; i < keys.size(); i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(keys.get(i), i));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		BTreeInternalPage root = root();
+		assertTrue(root.isCompressed());
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+		BTreeInternalPage plain = new BTreeInternalPage(root.getId(), BTreePage.createEmptyPageData(), 0);
+		assertTrue(root.getMaxEntries() > 5 * plain.getMaxEntries());
+		assertTrue(root.getNumEntries() > plain.getMaxEntries());
+		// separators are cut short, so they are shorter than the keys
+		Iterator<BTreeEntry> it = root.iterator();
+		while (it.hasNext())
+			assertTrue(((StringField) it.next().getKey()).getValue().length() < "customer/00000000/".length());
+
+		List<String> sorted = new ArrayList<>(keys);
+		Collections.sort(sorted);
+		assertEquals(sorted, scan());
+		for (int i = 0; i < keys.size(); i += 97) {
+			DbFileIterator search = bf.indexIterator(tid,
+					new IndexPredicate(Op.EQUALS, new StringField(keys.get(i), Type.STRING_LEN)));
+			search.open();
+			assertTrue(search.hasNext());
+			assertEquals(keys.get(i), ((StringField) search.next().getField(0)).getValue());
+			search.close();
+		}
+	}
+
+	/**
+	 * Compressed pages read back from their data are the same, and flushed
+	 * pages are read back from disk the same after the tree is deleted from.
+	 */
+	@Test
+	public void deleteAndReload() throws Exception {
+		// enough keys for two levels of internal pages
+		List<String> keys = keys(10000);
+		for (int i = 0; i < keys.size(); i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(keys.get(i), i));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		BTreeInternalPage root = root();
+		assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+		BTreeInternalPage copy = new BTreeInternalPage(root.getId(), root.getPageData(), 0);
+		assertTrue(copy.isCompressed());
+		assertArrayEquals(root.getPageData(), copy.getPageData());
+
+		// delete most of the tuples, merging and redistributing pages
+		Set<String> left = new TreeSet<>(keys);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		List<Tuple> stored = new ArrayList<>();
+		while (it.hasNext())
+			stored.add(it.next());
+		it.close();
+		Collections.shuffle(stored, new Random(3));
+		for (Tuple t : stored.subList(0, 9500)) {
+			Database.getBufferPool().deleteTuple(tid, t);
+			left.remove(((StringField) t.getField(0)).getValue());
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+		assertEquals(new ArrayList<>(left), scan());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompressedKeyTest.class);
+	}
+}
@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.index.*;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.execution.IndexPredicate;
 import simpledb.execution.Predicate.Op;
 
 import java.io.File;
@@ -176,6 +177,77 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	// an empty B+ tree filled with the keys 0, 2, 4, ... by one committed transaction,
+	// so that it has a root internal page over half full leaves
+	private BTreeFile twoLevelTree() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		TransactionId fill = new TransactionId();
+		for(int i = 0; i < 2000; i++)
+			Database.getBufferPool().insertTuple(fill, bf.getId(), BTreeUtility.getBTreeTuple(2 * i, 2));
+		Database.getBufferPool().transactionComplete(fill);
+		return bf;
+	}
+
+	@Test
+	public void testOptimisticInsertLocksOnlyLeaf() throws Exception {
+		BTreeFile bf = twoLevelTree();
+		BufferPool bp = Database.getBufferPool();
+		bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(1001, 2));
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		TransactionId reader = new TransactionId();
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(reader, rootPtrId, simpledb.common.Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		assertFalse(bp.holdsLock(tid, rootId));
+		bp.transactionComplete(reader);
+
+		// the tuple is in the one page the insert still holds
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(1001)));
+		it.open();
+		assertTrue(it.hasNext());
+		assertTrue(bp.holdsLock(tid, it.next().getRecordId().getPageId()));
+		it.close();
+	}
+
+	@Test
+	public void testConcurrentInsertsIntoDifferentLeaves() throws Exception {
+		BTreeFile bf = twoLevelTree();
+		BufferPool bp = Database.getBufferPool();
+		bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(1, 2));
+
+		// a second transaction inserting into another leaf does not wait for the first to commit
+		TransactionId other = new TransactionId();
+		Exception[] error = new Exception[1];
+		Thread t = new Thread(() -> {
+			try {
+				bp.insertTuple(other, bf.getId(), BTreeUtility.getBTreeTuple(3999, 2));
+			} catch (Exception e) {
+				error[0] = e;
+			}
+		});
+		t.start();
+		t.join(5000);
+		assertFalse(t.isAlive());
+		assertNull(error[0]);
+		bp.transactionComplete(other);
+		bp.transactionComplete(tid);
+
+		tid = new TransactionId();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(2002, count);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
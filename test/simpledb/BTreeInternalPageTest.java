@@ -8,7 +8,9 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -321,6 +323,46 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	// the child a search for f descends into, found by walking the entries in order
+	private static BTreePageId linearChild(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey()))
+				return e.getLeftChild();
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild(), also after deletes leave
+	 * empty slots between the entries
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(page.iterator().next().getLeftChild(), page.findChild(null));
+		for (int round = 0; round < 2; round++) {
+			for (int[] entry : EXAMPLE_VALUES) {
+				for (int k = entry[1] - 1; k <= entry[1] + 1; k++)
+					assertEquals(linearChild(page, new IntField(k)), page.findChild(new IntField(k)));
+			}
+			assertEquals(linearChild(page, new IntField(0)), page.findChild(new IntField(0)));
+			assertEquals(linearChild(page, new IntField(99999)), page.findChild(new IntField(99999)));
+
+			// delete every other entry
+			Iterator<BTreeEntry> it = page.iterator();
+			List<BTreeEntry> delete = new ArrayList<>();
+			for (int i = 0; it.hasNext(); i++) {
+				BTreeEntry e = it.next();
+				if (i % 2 == 1)
+					delete.add(e);
+			}
+			for (BTreeEntry e : delete)
+				page.deleteKeyAndRightChild(e);
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -347,6 +347,41 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.findSlot() and iterator(Field), also after
+	 * deletes leave empty slots between the tuples
+	 */
+	@Test public void findSlot() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		for (int round = 0; round < 2; round++) {
+			List<Tuple> tuples = new ArrayList<>();
+			Iterator<Tuple> it = page.iterator();
+			while (it.hasNext())
+				tuples.add(it.next());
+			for (int[] value : EXAMPLE_VALUES) {
+				for (int k = value[0] - 1; k <= value[0] + 1; k++) {
+					// the first tuple whose key is at least k
+					int first = 0;
+					while (first < tuples.size()
+							&& ((IntField) tuples.get(first).getField(0)).getValue() < k)
+						first++;
+					int slot = page.findSlot(new IntField(k));
+					if (first == tuples.size()) {
+						assertEquals(page.getMaxTuples(), slot);
+						assertFalse(page.iterator(new IntField(k)).hasNext());
+					} else {
+						assertEquals(tuples.get(first).getRecordId().getTupleNumber(), slot);
+						assertEquals(tuples.get(first), page.iterator(new IntField(k)).next());
+					}
+				}
+			}
+
+			// delete every other tuple
+			for (int i = 1; i < tuples.size(); i += 2)
+				page.deleteTuple(tuples.get(i));
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
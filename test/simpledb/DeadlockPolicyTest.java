@@ -0,0 +1,111 @@
+package simpledb;
+
+import simpledb.TestUtil.LockGrabber;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Runs the write-write deadlock from DeadlockTest under every
+ * BufferPool.DeadlockPolicy.
+ */
+public class DeadlockPolicyTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private PageId p1;
+  private BufferPool bp;
+
+  private static final int POLL_INTERVAL = 100;
+  private static final int MAX_POLLS = 100;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // two pages worth of tuples
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 1000; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(2, empty.numPages());
+
+    p0 = new HeapPageId(empty.getId(), 0);
+    p1 = new HeapPageId(empty.getId(), 1);
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+  }
+
+  private LockGrabber startGrabber(TransactionId tid, PageId pid, Permissions perm) {
+    LockGrabber lg = new LockGrabber(tid, pid, perm);
+    lg.start();
+    return lg;
+  }
+
+  /**
+   * t1 acquires p0.write; t2 acquires p1.write; t1 attempts p1.write; t2
+   * attempts p0.write. Exactly one of the two must get its second lock,
+   * and the other must be aborted.
+   */
+  private void runDeadlock(BufferPool.DeadlockPolicy policy) throws Exception {
+    bp.setDeadlockPolicy(policy);
+    bp.setLockTimeout(200);
+    TransactionId tid1 = new TransactionId();
+    TransactionId tid2 = new TransactionId();
+
+    startGrabber(tid1, p0, Permissions.READ_WRITE);
+    startGrabber(tid2, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    LockGrabber lg2 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+
+    for (int i = 0; i < MAX_POLLS; i++) {
+      Thread.sleep(POLL_INTERVAL);
+      assertFalse(lg1.acquired() && lg2.acquired());
+      if (lg1.acquired() || lg2.acquired()) {
+        assertTrue(lg1.getError() != null || lg2.getError() != null);
+        assertTrue(bp.getLockWaitStats().getWaits() > 0);
+        assertTrue(bp.getLockWaitStats().getAborts() > 0);
+        bp.transactionComplete(tid1);
+        bp.transactionComplete(tid2);
+        return;
+      }
+    }
+    throw new AssertionError(policy + " did not resolve the deadlock");
+  }
+
+  @Test public void detection() throws Exception {
+    runDeadlock(BufferPool.DeadlockPolicy.DETECTION);
+  }
+
+  @Test public void timeout() throws Exception {
+    runDeadlock(BufferPool.DeadlockPolicy.TIMEOUT);
+  }
+
+  @Test public void woundWait() throws Exception {
+    runDeadlock(BufferPool.DeadlockPolicy.WOUND_WAIT);
+  }
+
+  @Test public void waitDie() throws Exception {
+    runDeadlock(BufferPool.DeadlockPolicy.WAIT_DIE);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(DeadlockPolicyTest.class);
+  }
+}
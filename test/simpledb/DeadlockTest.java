@@ -7,6 +7,9 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -19,6 +22,7 @@ import simpledb.transaction.TransactionId;
 public class DeadlockTest extends TestUtil.CreateHeapFile {
   private PageId p0;
     private PageId p1;
+    private PageId p2;
     private TransactionId tid1, tid2;
   private Random rand;
 
@@ -49,7 +53,7 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
 
     this.p0 = new HeapPageId(empty.getId(), 0);
     this.p1 = new HeapPageId(empty.getId(), 1);
-      PageId p2 = new HeapPageId(empty.getId(), 2);
+    this.p2 = new HeapPageId(empty.getId(), 2);
     this.tid1 = new TransactionId();
     this.tid2 = new TransactionId();
     this.rand = new Random();
@@ -220,6 +224,39 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Three transactions wait on each other in a cycle: t1 holds p0, t2 holds
+   * p1, t3 holds p2; t3 waits for p0, t2 for p2, and then t1 closes the
+   * cycle by waiting for p1. The youngest transaction on the cycle, t3, must
+   * be the one aborted, even though t1 made the request that closed it.
+   */
+  @Test public void testCycleAbortsYoungest() throws Exception {
+    TransactionId tid3 = new TransactionId();
+
+    startGrabber(tid1, p0, Permissions.READ_WRITE);
+    startGrabber(tid2, p1, Permissions.READ_WRITE);
+    startGrabber(tid3, p2, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg3 = startGrabber(tid3, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lg2 = startGrabber(tid2, p2, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    // the grabber rolls the victim back, which lets t2 and then t1 go on
+    assertNotNull(lg3.getError());
+    assertNull(lg2.getError());
+    assertNull(lg1.getError());
+    assertTrue(lg2.acquired());
+    assertFalse(lg1.acquired());
+    bp.transactionComplete(tid2);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1.acquired());
+    assertNull(lg1.getError());
+  }
+
   /**
    * JUnit suite target
    */
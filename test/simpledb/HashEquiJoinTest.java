@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  // rows of (key, row number) with keys below maxKey
+  private static int[] data(int rows, int maxKey, long seed) {
+    Random r = new Random(seed);
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = r.nextInt(maxKey);
+      data[2 * i + 1] = i;
+    }
+    return data;
+  }
+
+  // the join of left and right on their first column, computed directly
+  private static List<String> expected(int[] left, int[] right) {
+    List<String> rows = new ArrayList<>();
+    for (int i = 0; i < left.length; i += 2)
+      for (int j = 0; j < right.length; j += 2)
+        if (left[i] == right[j])
+          rows.add(left[i] + " " + left[i + 1] + " " + right[j] + " " + right[j + 1]);
+    Collections.sort(rows);
+    return rows;
+  }
+
+  private static List<String> drain(OpIterator op) throws Exception {
+    List<String> rows = new ArrayList<>();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 4; i++)
+        sb.append(i == 0 ? "" : " ").append(t.getField(i));
+      rows.add(sb.toString());
+    }
+    Collections.sort(rows);
+    return rows;
+  }
+
+  private static HashEquiJoin join(int[] left, int[] right) {
+    return new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        TestUtil.createTupleList(2, left), TestUtil.createTupleList(2, right));
+  }
+
+  /**
+   * A build side within the budget is joined in memory.
+   */
+  @Test public void inMemory() throws Exception {
+    int[] left = data(1000, 300, 1), right = data(1500, 300, 2);
+    HashEquiJoin op = join(left, right);
+    op.open();
+    assertEquals(expected(left, right), drain(op));
+    assertEquals(0, op.getSpilledBytes());
+    assertEquals(0, op.getSpilledPartitions());
+    op.close();
+  }
+
+  /**
+   * A build side over the budget is partitioned to disk with the probe side,
+   * and rewinding partitions again and gives the same result.
+   */
+  @Test public void partitioned() throws Exception {
+    int[] left = data(3000, 1000, 3), right = data(2000, 1200, 4);
+    HashEquiJoin op = join(left, right);
+    op.setMemoryBudget(8 * 400);
+    op.open();
+    List<String> expected = expected(left, right);
+    assertEquals(expected, drain(op));
+    assertTrue(op.getSpilledBytes() > 0);
+    assertTrue(op.getSpilledPartitions() > 0);
+    assertEquals(0, op.getSkewedPartitions());
+    op.rewind();
+    assertEquals(expected, drain(op));
+    op.close();
+  }
+
+  /**
+   * Partitions that are still too big are partitioned again.
+   */
+  @Test public void repartitioned() throws Exception {
+    int[] left = data(4000, 4000, 5), right = data(1000, 4000, 6);
+    HashEquiJoin op = join(left, right);
+    op.setMemoryBudget(8 * 50);
+    op.open();
+    assertEquals(expected(left, right), drain(op));
+    assertTrue(op.getSpilledPartitions() > 16);
+    assertEquals(0, op.getSkewedPartitions());
+    op.close();
+  }
+
+  /**
+   * A key too frequent to fit in memory cannot be split by hashing; its
+   * partition is joined in chunks instead.
+   */
+  @Test public void skewed() throws Exception {
+    int[] left = data(600, 50, 7);
+    for (int i = 0; i < 400; i++)
+      left[2 * i] = 7;
+    int[] right = data(300, 50, 8);
+    HashEquiJoin op = join(left, right);
+    op.setMemoryBudget(8 * 100);
+    op.open();
+    assertEquals(expected(left, right), drain(op));
+    assertEquals(1, op.getSkewedPartitions());
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
@@ -125,6 +125,39 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * The memory-mapped read path returns the same tuples as the BufferPool
+     * path, and still sees pages dirtied in the BufferPool.
+     */
+    @Test
+    public void testMemoryMappedIterator() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1200, null, tuples);
+        f.setMemoryMapped(true);
+
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        List<List<Integer>> mapped = new ArrayList<>();
+        while (it.hasNext()) {
+            mapped.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        it.close();
+        assertEquals(tuples, mapped);
+
+        Tuple t = Utility.getHeapTuple(new int[] {-1, -2});
+        Database.getBufferPool().insertTuple(tid, f.getId(), t);
+        it.open();
+        boolean found = false;
+        int count = 0;
+        while (it.hasNext()) {
+            found |= SystemTestUtil.tupleToList(it.next()).equals(Arrays.asList(-1, -2));
+            count++;
+        }
+        it.close();
+        assertTrue(found);
+        assertEquals(1201, count);
+    }
+
     /**
      * JUnit suite target
      */
@@ -90,6 +90,54 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Inserts go straight to a page with free slots, without locking the
+     * full pages before it, and reuse slots freed by deletes.
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        Tuple first = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, first);
+        for (int i = 1; i < 1008; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        assertEquals(0, empty.getFreeSlots(0));
+        assertEquals(0, empty.getFreeSlots(1));
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(1008, 2));
+        assertEquals(3, empty.numPages());
+        assertEquals(503, empty.getFreeSlots(2));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 1)));
+
+        empty.deleteTuple(tid, first);
+        assertEquals(1, empty.getFreeSlots(0));
+        Tuple reused = Utility.getHeapTuple(1009, 2);
+        empty.insertTuple(tid, reused);
+        assertEquals(0, reused.getRecordId().getPageId().getPageNumber());
+        assertEquals(3, empty.numPages());
+    }
+
+    /**
+     * A saved free-space map is picked up by the next HeapFile on the file.
+     */
+    @Test public void saveFreeSpaceMap() throws Exception {
+        for (int i = 0; i < 510; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        empty.saveFreeSpaceMap();
+        try {
+            HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+            assertEquals(0, reopened.getFreeSlots(0));
+            assertEquals(498, reopened.getFreeSlots(1));
+        } finally {
+            new java.io.File(empty.getFile().getPath() + ".fsm").delete();
+        }
+    }
+
     /**
      * JUnit suite target
      */
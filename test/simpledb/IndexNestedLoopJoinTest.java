@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.IndexNestedLoopJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  private static final Predicate.Op[] OPS = {Predicate.Op.EQUALS,
+      Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+      Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ};
+
+  private static int[] outer() {
+    int[] data = new int[40];
+    for (int i = 0; i < 20; i++) {
+      data[2 * i] = (i * 37) % 300;
+      data[2 * i + 1] = i;
+    }
+    return data;
+  }
+
+  private static List<String> drain(OpIterator op) throws Exception {
+    List<String> rows = new ArrayList<>();
+    op.open();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 4; i++)
+        sb.append(i == 0 ? "" : " ").append(t.getField(i));
+      rows.add(sb.toString());
+    }
+    op.close();
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /**
+   * Probing the index returns the same tuples as a nested loops join over
+   * a scan of the indexed table, searching it once per outer tuple.
+   */
+  @Test public void matchesNestedLoops() throws Exception {
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, 300, null, null, 0);
+    TransactionId tid = new TransactionId();
+    for (Predicate.Op op : OPS) {
+      JoinPredicate pred = new JoinPredicate(0, op, 0);
+      List<String> expected = drain(new Join(pred, TestUtil.createTupleList(2, outer()),
+          new SeqScan(tid, bf.getId(), "b")));
+      IndexNestedLoopJoin inlj = new IndexNestedLoopJoin(pred,
+          TestUtil.createTupleList(2, outer()), new SeqScan(tid, bf.getId(), "b"));
+      assertEquals(op.toString(), expected, drain(inlj));
+      assertEquals(20, inlj.getProbes());
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Filters above the scan of the indexed table apply to the tuples found
+   * in the index.
+   */
+  @Test public void filtered() throws Exception {
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, 300, null, null, 0);
+    TransactionId tid = new TransactionId();
+    Predicate half = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(150));
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    List<String> expected = drain(new Join(pred, TestUtil.createTupleList(2, outer()),
+        new Filter(half, new SeqScan(tid, bf.getId(), "b"))));
+    assertTrue(IndexNestedLoopJoin.canProbe(new Filter(half, new SeqScan(tid, bf.getId(), "b")), 0));
+    assertEquals(expected, drain(new IndexNestedLoopJoin(pred, TestUtil.createTupleList(2, outer()),
+        new Filter(half, new SeqScan(tid, bf.getId(), "b")))));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * The optimizer probes the index of a large table joined on its key to a
+   * small table instead of scanning it.
+   */
+  @Test public void optimizerChoosesIndexJoin() throws Exception {
+    List<List<Integer>> bigTuples = new ArrayList<>();
+    BTreeFile unnamed = BTreeUtility.createRandomBTreeFile(2, 4000, 100000, null, bigTuples, 0);
+    // the same file with named columns, so that the parser can resolve them
+    File file = unnamed.getFile();
+    BTreeFile big = new BTreeFile(file, 0, Utility.getTupleDesc(2, "c"));
+    Database.getCatalog().addTable(big, "big");
+    HeapFile small = SystemTestUtil.createRandomHeapFile(2, 10, 100000, null, new ArrayList<>(), "c");
+    Database.getCatalog().addTable(small, "small");
+    Map<String, TableStats> stats = new HashMap<>();
+    stats.put("big", new TableStats(big.getId(), 1000));
+    stats.put("small", new TableStats(small.getId(), 1000));
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT * FROM small s, big b WHERE s.c0 = b.c0;");
+    OpIterator plan = lp.physicalPlan(tid, stats, false);
+    assertTrue(contains(plan));
+    plan.open();
+    while (plan.hasNext())
+      plan.next();
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static boolean contains(OpIterator plan) {
+    if (plan instanceof IndexNestedLoopJoin)
+      return true;
+    if (plan instanceof Operator) {
+      for (OpIterator child : ((Operator) plan).getChildren()) {
+        if (child != null && contains(child))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
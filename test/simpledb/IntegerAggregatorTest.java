@@ -1,7 +1,13 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import junit.framework.JUnit4TestAdapter;
@@ -13,6 +19,7 @@ import simpledb.common.Type;
 import simpledb.execution.Aggregator;
 import simpledb.execution.IntegerAggregator;
 import simpledb.execution.OpIterator;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class IntegerAggregatorTest extends SimpleDbTestBase {
@@ -182,6 +189,123 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  private static List<String> drain(OpIterator it) throws Exception {
+    List<String> rows = new ArrayList<>();
+    it.open();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      rows.add(t.getField(0) + " " + t.getField(1));
+    }
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /**
+   * Integer group values of any sign, including the extremes, are kept
+   * apart as the group table grows.
+   */
+  @Test public void manyGroups() throws Exception {
+    int[] data = new int[2 * 20000];
+    Map<Integer, Integer> sums = new HashMap<>();
+    for (int i = 0; i < 20000; i++) {
+      int key = i % 3 == 0 ? Integer.MIN_VALUE + i % 7 : (i * 104729) % 9000 - 4500;
+      if (i % 5000 == 0)
+        key = Integer.MAX_VALUE;
+      data[2 * i] = key;
+      data[2 * i + 1] = i % 100;
+      sums.merge(key, i % 100, Integer::sum);
+    }
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    OpIterator input = TestUtil.createTupleList(width1, data);
+    input.open();
+    while (input.hasNext())
+      agg.mergeTupleIntoGroup(input.next());
+    List<String> expected = new ArrayList<>();
+    for (Map.Entry<Integer, Integer> e : sums.entrySet())
+      expected.add(e.getKey() + " " + e.getValue());
+    Collections.sort(expected);
+    assertEquals(expected, drain(agg.iterator()));
+  }
+
+  /**
+   * Groups beyond the memory budget are spilled to partitions and
+   * aggregated when read back, also when a partition must be split again,
+   * giving the same result as aggregating in memory.
+   */
+  @Test public void spill() throws Exception {
+    int[] data = new int[2 * 6000];
+    for (int i = 0; i < 6000; i++) {
+      data[2 * i] = (i * 7919) % 3000;
+      data[2 * i + 1] = i;
+    }
+    for (Aggregator.Op op : new Aggregator.Op[] {Aggregator.Op.SUM, Aggregator.Op.AVG,
+        Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.COUNT}) {
+      IntegerAggregator inMemory = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+      IntegerAggregator spilled = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+      IntegerAggregator repartitioned = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+      spilled.setMemoryBudget(68 * 500);
+      repartitioned.setMemoryBudget(68 * 20);
+      OpIterator input = TestUtil.createTupleList(width1, data);
+      input.open();
+      while (input.hasNext()) {
+        Tuple t = input.next();
+        inMemory.mergeTupleIntoGroup(t);
+        spilled.mergeTupleIntoGroup(t);
+        repartitioned.mergeTupleIntoGroup(t);
+      }
+      List<String> expected = drain(inMemory.iterator());
+      assertEquals(3000, expected.size());
+      assertEquals(0, inMemory.getSpilledPartitions());
+
+      OpIterator it = spilled.iterator();
+      assertEquals(op.toString(), expected, drain(it));
+      assertEquals(16, spilled.getSpilledPartitions());
+      it.rewind();
+      int count = 0;
+      while (it.hasNext()) {
+        it.next();
+        count++;
+      }
+      assertEquals(3000, count);
+      it.close();
+
+      it = repartitioned.iterator();
+      assertEquals(op.toString(), expected, drain(it));
+      it.close();
+      assertTrue(repartitioned.getSpilledPartitions() > 16);
+    }
+  }
+
+  /**
+   * Merging a partial aggregate whose groups spilled into one holding the
+   * same groups in memory counts each group once.
+   */
+  @Test public void mergeSpilledPartials() throws Exception {
+    int[] data = new int[2 * 4000];
+    for (int i = 0; i < 4000; i++) {
+      data[2 * i] = i % 1000;
+      data[2 * i + 1] = i;
+    }
+    IntegerAggregator inMemory = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    IntegerAggregator first = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    IntegerAggregator second = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    second.setMemoryBudget(68 * 50);
+    OpIterator input = TestUtil.createTupleList(width1, data);
+    input.open();
+    for (int i = 0; input.hasNext(); i++) {
+      Tuple t = input.next();
+      inMemory.mergeTupleIntoGroup(t);
+      (i < 2000 ? first : second).mergeTupleIntoGroup(t);
+    }
+    first.merge(second);
+    assertTrue(first.getSpilledPartitions() > 0);
+    OpIterator it = first.iterator();
+    assertEquals(drain(inMemory.iterator()), drain(it));
+    it.rewind();
+    assertEquals(drain(inMemory.iterator()), drain(it));
+    it.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -112,6 +112,36 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Join buffers blocks of outer tuples and scans the inner relation once
+   * per block.
+   */
+  @Test public void blockNestedLoops() throws Exception {
+    // 2000 outer tuples of 8 bytes fill 4 pages of 4096 bytes
+    int[] outer = new int[2000 * 2];
+    for (int i = 0; i < 2000; i++) {
+      outer[2 * i] = i % 50;
+      outer[2 * i + 1] = i;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+    Join op = new Join(pred, TestUtil.createTupleList(width1, outer), scan2);
+    op.setBlockPages(1);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertTrue(t.getField(0).compare(Predicate.Op.LESS_THAN, t.getField(width1)));
+      count++;
+    }
+    // inner keys are 1..5; each of the outer keys 0..4 occurs 40 times
+    assertEquals(40 * (5 + 4 + 3 + 2 + 1), count);
+    assertEquals(4, op.getInnerScans());
+    op.rewind();
+    assertTrue(op.hasNext());
+    assertEquals(1, op.getInnerScans());
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,164 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class KeyRangeScanTest extends SimpleDbTestBase {
+
+  private static IndexPredicate pred(Predicate.Op op, int value) {
+    return new IndexPredicate(op, new IntField(value));
+  }
+
+  private static List<String> drain(OpIterator op) throws Exception {
+    List<String> rows = new ArrayList<>();
+    op.open();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      rows.add(t.getField(0) + " " + t.getField(1));
+    }
+    op.close();
+    Collections.sort(rows);
+    return rows;
+  }
+
+  private static OpIterator filtered(OpIterator child, IndexPredicate... preds) {
+    for (IndexPredicate p : preds) {
+      if (p != null)
+        child = new Filter(new Predicate(0, p.getOp(), p.getField()), child);
+    }
+    return child;
+  }
+
+  /**
+   * A scan restricted to a key range returns the same tuples as a filter
+   * over a scan of the whole tree.
+   */
+  @Test public void matchesFilter() throws Exception {
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, 300, null, null, 0);
+    TransactionId tid = new TransactionId();
+    IndexPredicate[][] ranges = {
+        {pred(Predicate.Op.EQUALS, 150), null},
+        {pred(Predicate.Op.GREATER_THAN, 100), null},
+        {pred(Predicate.Op.GREATER_THAN_OR_EQ, 100), pred(Predicate.Op.LESS_THAN, 120)},
+        {pred(Predicate.Op.GREATER_THAN, 100), pred(Predicate.Op.LESS_THAN_OR_EQ, 120)},
+        {pred(Predicate.Op.EQUALS, 150), pred(Predicate.Op.LESS_THAN, 150)},
+        {null, pred(Predicate.Op.LESS_THAN_OR_EQ, 40)},
+        {pred(Predicate.Op.GREATER_THAN, 500), null},
+    };
+    for (IndexPredicate[] range : ranges) {
+      List<String> expected = drain(filtered(new SeqScan(tid, bf.getId(), "b"), range));
+      SeqScan scan = new SeqScan(tid, bf.getId(), "b");
+      scan.setKeyRange(range[0], range[1]);
+      assertEquals(expected, drain(scan));
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A narrow key range reads only the pages on the path to its leaf.
+   */
+  @Test public void readsOnlyRange() throws Exception {
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, 100000, null, null, 0);
+    TransactionId tid = new TransactionId();
+    Database.getBufferPool().resetHitCounters();
+    drain(new SeqScan(tid, bf.getId(), "b"));
+    long full = Database.getBufferPool().getHits() + Database.getBufferPool().getMisses();
+
+    SeqScan scan = new SeqScan(tid, bf.getId(), "b");
+    scan.setKeyRange(pred(Predicate.Op.GREATER_THAN_OR_EQ, 50000), pred(Predicate.Op.LESS_THAN, 50100));
+    Database.getBufferPool().resetHitCounters();
+    drain(scan);
+    long range = Database.getBufferPool().getHits() + Database.getBufferPool().getMisses();
+    assertTrue(range + " pages read for the range, " + full + " for the file", range * 10 < full);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * The planner turns filters on the key of a B+ tree into the key range of
+   * its scan, keeping the tighter of two bounds, and leaves heap file scans
+   * alone.
+   */
+  @Test public void plannerSetsKeyRange() throws Exception {
+    List<List<Integer>> tuples = new ArrayList<>();
+    BTreeFile unnamed = BTreeUtility.createRandomBTreeFile(2, 2000, 1000, null, tuples, 0);
+    // the same file with named columns, so that the parser can resolve them
+    File file = unnamed.getFile();
+    BTreeFile big = new BTreeFile(file, 0, Utility.getTupleDesc(2, "c"));
+    Database.getCatalog().addTable(big, "big");
+    HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 100, 1000, null, new ArrayList<>(), "c");
+    Database.getCatalog().addTable(heap, "heap");
+    Map<String, TableStats> stats = new HashMap<>();
+    stats.put("big", new TableStats(big.getId(), 1000));
+    stats.put("heap", new TableStats(heap.getId(), 1000));
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT b.c0, b.c1 FROM big b WHERE b.c0 > 100 AND b.c0 >= 50 AND b.c0 <= 200 AND b.c1 < 500;");
+    OpIterator plan = lp.physicalPlan(tid, stats, false);
+    SeqScan scan = scanIn(plan);
+    assertEquals(Predicate.Op.GREATER_THAN, scan.getKeyFrom().getOp());
+    assertEquals(new IntField(100), scan.getKeyFrom().getField());
+    assertEquals(Predicate.Op.LESS_THAN_OR_EQ, scan.getKeyTo().getOp());
+    assertEquals(new IntField(200), scan.getKeyTo().getField());
+    List<String> expected = new ArrayList<>();
+    for (List<Integer> t : tuples) {
+      if (t.get(0) > 100 && t.get(0) <= 200 && t.get(1) < 500)
+        expected.add(t.get(0) + " " + t.get(1));
+    }
+    Collections.sort(expected);
+    assertEquals(expected, drain(plan));
+
+    lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM heap h WHERE h.c0 > 100;");
+    scan = scanIn(lp.physicalPlan(tid, stats, false));
+    assertFalse(scan.isKeyedOn(0));
+    assertNull(scan.getKeyFrom());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static SeqScan scanIn(OpIterator plan) {
+    if (plan instanceof SeqScan)
+      return (SeqScan) plan;
+    for (OpIterator child : ((Operator) plan).getChildren()) {
+      SeqScan scan = child == null ? null : scanIn(child);
+      if (scan != null)
+        return scan;
+    }
+    return null;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(KeyRangeScanTest.class);
+  }
+}
@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.execution.OrderBy;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 3000;
+
+  // pairs (key, row number); keys repeat so stability can be checked
+  private static int[] data() {
+    Random r = new Random(7);
+    int[] data = new int[ROWS * 2];
+    for (int i = 0; i < ROWS; i++) {
+      data[2 * i] = r.nextInt(200);
+      data[2 * i + 1] = i;
+    }
+    return data;
+  }
+
+  // checks the order of an opened OrderBy over data() and returns its size
+  private static int checkSorted(OrderBy op, boolean asc) throws Exception {
+    int count = 0;
+    int lastKey = asc ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+    int lastRow = -1;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      int row = ((IntField) t.getField(1)).getValue();
+      assertTrue(asc ? key >= lastKey : key <= lastKey);
+      if (key == lastKey) {
+        assertTrue(row > lastRow);
+      }
+      lastKey = key;
+      lastRow = row;
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Sorting within the memory budget writes nothing to disk.
+   */
+  @Test public void inMemory() throws Exception {
+    OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(2, data()));
+    op.open();
+    assertEquals(ROWS, checkSorted(op, true));
+    assertEquals(0, op.getRunCount());
+    assertEquals(0, op.getSpilledBytes());
+    op.close();
+  }
+
+  /**
+   * A small budget spills sorted runs and merges them, keeping the sort
+   * stable and the result rewindable.
+   */
+  @Test public void spill() throws Exception {
+    OrderBy op = new OrderBy(0, false, TestUtil.createTupleList(2, data()));
+    op.setMemoryBudget(8 * 500);
+    op.open();
+    assertEquals(ROWS, checkSorted(op, false));
+    assertEquals(ROWS / 500, op.getRunCount());
+    assertEquals(ROWS * 8L, op.getSpilledBytes());
+    op.rewind();
+    assertEquals(ROWS, checkSorted(op, false));
+    op.close();
+  }
+
+  /**
+   * More runs than can be merged at once are merged in several passes.
+   */
+  @Test public void multiPassMerge() throws Exception {
+    OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(2, data()));
+    op.setMemoryBudget(8 * 20);
+    op.open();
+    assertEquals(ROWS, checkSorted(op, true));
+    assertEquals(ROWS / 20, op.getRunCount());
+    assertTrue(op.getSpilledBytes() > ROWS * 8L);
+    op.close();
+  }
+
+  /**
+   * String fields survive the spill format.
+   */
+  @Test public void strings() throws Exception {
+    Object[] data = new Object[] {"pear", 1, "apple", 2, "fig", 3, "", 4, "banana", 5};
+    OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(2, data));
+    op.setMemoryBudget(1);
+    op.open();
+    String[] expected = {"", "apple", "banana", "fig", "pear"};
+    for (String s : expected) {
+      assertEquals(s, ((StringField) op.next().getField(0)).getValue());
+    }
+    assertTrue(op.getRunCount() > 0);
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
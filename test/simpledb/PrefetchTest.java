@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Tests read-ahead of sequential scans into the BufferPool.
+ */
+public class PrefetchTest extends SimpleDbTestBase {
+  private static final int PAGES = 20;
+
+  private HeapFile hf;
+  private List<List<Integer>> tuples;
+  private BufferPool bp;
+
+  @Before public void setUp() throws Exception {
+    tuples = new ArrayList<>();
+    hf = SystemTestUtil.createRandomHeapFile(1, 992 * PAGES, null, tuples);
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+  }
+
+  /**
+   * A scan returns the same tuples with read-ahead on, and the pages it
+   * read ahead are the ones it asked for next.
+   */
+  @Test public void sequentialScan() throws Exception {
+    assertEquals(PAGES, hf.numPages());
+    SystemTestUtil.matchTuples(hf, tuples);
+    BufferPool.PrefetchStats stats = bp.getPrefetchStats();
+    assertTrue(stats.getIssued() > 0);
+    assertTrue(stats.getHits() > 0);
+    assertEquals(0, stats.getWasted());
+    assertEquals(PAGES, bp.getHits() + bp.getMisses());
+  }
+
+  /**
+   * With a zero window the scan never reads ahead.
+   */
+  @Test public void disabled() throws Exception {
+    bp.setPrefetchWindow(0);
+    SystemTestUtil.matchTuples(hf, tuples);
+    assertEquals(0, bp.getPrefetchStats().getIssued());
+  }
+
+  /**
+   * A prefetched page that is discarded before anyone asks for it counts as
+   * wasted; a page that is asked for counts as a hit and is not read again.
+   */
+  @Test public void hitsAndWaste() throws Exception {
+    HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+    HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+    Page prefetched = bp.prefetch(p0).get();
+    assertNotNull(prefetched);
+    assertNotNull(bp.prefetch(p1).get());
+
+    TransactionId tid = new TransactionId();
+    assertTrue(prefetched == bp.getPage(tid, p0, Permissions.READ_ONLY));
+    bp.transactionComplete(tid);
+    bp.discardPage(p1);
+
+    BufferPool.PrefetchStats stats = bp.getPrefetchStats();
+    assertEquals(2, stats.getIssued());
+    assertEquals(1, stats.getHits());
+    assertEquals(1, stats.getWasted());
+    assertEquals(0, bp.getMisses());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PrefetchTest.class);
+  }
+}
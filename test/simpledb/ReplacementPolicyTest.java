@@ -0,0 +1,130 @@
+package simpledb;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.storage.ClockPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LRUPolicy;
+import simpledb.storage.PageId;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.storage.TwoQPolicy;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class ReplacementPolicyTest {
+  private static final int POOL = 16;
+  private static final int HOT = 4;
+
+  /**
+   * Simulates a buffer pool of POOL pages: HOT pages are requested
+   * repeatedly, then a sequential scan reads 100 other pages.
+   * @return the number of hot pages still cached after the scan
+   */
+  private int hotPagesAfterScan(ReplacementPolicy policy, boolean markScan) {
+    Set<PageId> cached = new HashSet<>();
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < HOT; i++) {
+        request(policy, cached, new HeapPageId(1, i), false);
+        // other one-off requests between the hot ones
+        request(policy, cached, new HeapPageId(3, round * HOT * 4 + i), false);
+        request(policy, cached, new HeapPageId(3, round * HOT * 4 + i + HOT), false);
+        request(policy, cached, new HeapPageId(3, round * HOT * 4 + i + 2 * HOT), false);
+        request(policy, cached, new HeapPageId(3, round * HOT * 4 + i + 3 * HOT), false);
+      }
+    }
+    for (int i = 0; i < HOT; i++) {
+      request(policy, cached, new HeapPageId(1, i), false);
+    }
+    for (int i = 0; i < 100; i++) {
+      request(policy, cached, new HeapPageId(2, i), markScan);
+    }
+    int hot = 0;
+    for (int i = 0; i < HOT; i++) {
+      if (cached.contains(new HeapPageId(1, i))) hot++;
+    }
+    return hot;
+  }
+
+  private void request(ReplacementPolicy policy, Set<PageId> cached, PageId pid, boolean scan) {
+    if (cached.contains(pid)) {
+      policy.pageAccessed(pid);
+      return;
+    }
+    if (cached.size() >= POOL) {
+      PageId victim = policy.victim(p -> true);
+      assertNotEquals(null, victim);
+      cached.remove(victim);
+    }
+    cached.add(pid);
+    policy.pageAdded(pid, scan);
+  }
+
+  @Test public void lruFlushedByUnmarkedScan() {
+    assertEquals(0, hotPagesAfterScan(new LRUPolicy(POOL), false));
+  }
+
+  @Test public void lruKeepsHotPagesWithScanRing() {
+    assertEquals(HOT, hotPagesAfterScan(new LRUPolicy(POOL), true));
+  }
+
+  @Test public void twoQResistsUnmarkedScan() {
+    assertEquals(HOT, hotPagesAfterScan(new TwoQPolicy(POOL), false));
+  }
+
+  @Test public void twoQKeepsHotPagesWithScanRing() {
+    assertEquals(HOT, hotPagesAfterScan(new TwoQPolicy(POOL), true));
+  }
+
+  @Test public void noVictimWhenNothingEvictable() {
+    ReplacementPolicy policy = new TwoQPolicy(POOL);
+    policy.pageAdded(new HeapPageId(1, 0), false);
+    assertNull(policy.victim(p -> false));
+  }
+
+  @Test public void clockGivesSecondChance() {
+    ReplacementPolicy policy = new ClockPolicy(4);
+    for (int i = 0; i < 4; i++) {
+      policy.pageAdded(new HeapPageId(1, i), false);
+    }
+    // every page is referenced, so the first sweep clears them all
+    assertEquals(new HeapPageId(1, 0), policy.victim(p -> true));
+    policy.pageAdded(new HeapPageId(1, 4), false);
+    policy.pageAccessed(new HeapPageId(1, 1));
+    assertEquals(new HeapPageId(1, 2), policy.victim(p -> true));
+  }
+
+  @Test public void clockEvictsScanPagesFirst() {
+    ReplacementPolicy policy = new ClockPolicy(4);
+    policy.pageAdded(new HeapPageId(1, 0), false);
+    policy.pageAdded(new HeapPageId(1, 1), false);
+    policy.pageAdded(new HeapPageId(2, 0), true);
+    assertEquals(new HeapPageId(2, 0), policy.victim(p -> true));
+  }
+
+  /**
+   * A page added again while still tracked keeps its one frame, so the
+   * other frame is still free for a second page.
+   */
+  @Test(timeout = 10000) public void clockTracksReaddedPageOnce() {
+    ReplacementPolicy policy = new ClockPolicy(2);
+    policy.pageAdded(new HeapPageId(1, 0), false);
+    policy.pageAdded(new HeapPageId(1, 0), false);
+    policy.pageAdded(new HeapPageId(1, 1), false);
+    Set<PageId> evicted = new HashSet<>();
+    evicted.add(policy.victim(p -> true));
+    evicted.add(policy.victim(p -> true));
+    assertEquals(2, evicted.size());
+    assertNull(policy.victim(p -> true));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+  }
+}
@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Utility;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.SortMergeJoin;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  private static final Predicate.Op[] OPS = {Predicate.Op.EQUALS,
+      Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+      Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ};
+
+  // rows of (key, row number) with keys below maxKey
+  private static int[] data(int rows, int maxKey, long seed) {
+    Random r = new Random(seed);
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = r.nextInt(maxKey);
+      data[2 * i + 1] = i;
+    }
+    return data;
+  }
+
+  private static List<String> drain(OpIterator op) throws Exception {
+    List<String> rows = new ArrayList<>();
+    op.open();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 4; i++)
+        sb.append(i == 0 ? "" : " ").append(t.getField(i));
+      rows.add(sb.toString());
+    }
+    op.close();
+    Collections.sort(rows);
+    return rows;
+  }
+
+  private static List<String> nestedLoops(Predicate.Op op, int[] left, int[] right) throws Exception {
+    return drain(new Join(new JoinPredicate(0, op, 0),
+        TestUtil.createTupleList(2, left), TestUtil.createTupleList(2, right)));
+  }
+
+  /**
+   * Every supported predicate returns the same tuples as a nested loops join.
+   */
+  @Test public void matchesNestedLoops() throws Exception {
+    int[] left = data(150, 40, 1), right = data(120, 40, 2);
+    for (Predicate.Op op : OPS) {
+      SortMergeJoin smj = new SortMergeJoin(new JoinPredicate(0, op, 0),
+          TestUtil.createTupleList(2, left), TestUtil.createTupleList(2, right));
+      assertEquals(op.toString(), nestedLoops(op, left, right), drain(smj));
+    }
+  }
+
+  /**
+   * With a small budget the sorts and the match buffer spill to disk, and
+   * the result stays the same, also after a rewind.
+   */
+  @Test public void spill() throws Exception {
+    int[] left = data(300, 30, 3), right = data(300, 30, 4);
+    for (Predicate.Op op : OPS) {
+      SortMergeJoin smj = new SortMergeJoin(new JoinPredicate(0, op, 0),
+          TestUtil.createTupleList(2, left), TestUtil.createTupleList(2, right));
+      smj.setMemoryBudget(8 * 16);
+      List<String> expected = nestedLoops(op, left, right);
+      smj.open();
+      List<String> first = new ArrayList<>();
+      while (smj.hasNext())
+        first.add(smj.next().toString());
+      assertTrue(smj.getSpilledBytes() > 0);
+      smj.rewind();
+      int count = 0;
+      while (smj.hasNext()) {
+        smj.next();
+        count++;
+      }
+      smj.close();
+      assertEquals(expected.size(), first.size());
+      assertEquals(expected.size(), count);
+    }
+  }
+
+  /**
+   * Inputs that are already sorted are merged as they are.
+   */
+  @Test public void presorted() throws Exception {
+    int[] left = data(100, 20, 5), right = data(100, 20, 6);
+    OpIterator sorted1 = new OrderBy(0, true, TestUtil.createTupleList(2, left));
+    OpIterator sorted2 = new OrderBy(0, true, TestUtil.createTupleList(2, right));
+    assertTrue(SortMergeJoin.isSortedOn(sorted1, 0));
+    SortMergeJoin smj = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        sorted1, sorted2, true, true);
+    assertEquals(nestedLoops(Predicate.Op.EQUALS, left, right), drain(smj));
+  }
+
+  /**
+   * The optimizer uses a sort-merge join for range predicates and costs it
+   * below a nested loops join.
+   */
+  @Test public void optimizerChoosesMergeJoin() throws Exception {
+    OpIterator left = named("t1", data(10, 5, 7));
+    OpIterator right = named("t2", data(10, 5, 8));
+    LogicalJoinNode range = new LogicalJoinNode("t1", "t2", "t1.c0", "t2.c0", Predicate.Op.LESS_THAN);
+    assertTrue(JoinOptimizer.instantiateJoin(range, left, right) instanceof SortMergeJoin);
+
+    LogicalJoinNode eq = new LogicalJoinNode("t1", "t2", "t1.c0", "t2.c0", Predicate.Op.EQUALS);
+    assertTrue(JoinOptimizer.instantiateJoin(eq, new OrderBy(0, true, left),
+        new OrderBy(0, true, right)) instanceof SortMergeJoin);
+
+    JoinOptimizer jo = new JoinOptimizer(null, new ArrayList<>());
+    double nestedLoops = 1000 + 1000 * 1000.0 + 1000 * 1000.0;
+    assertTrue(jo.estimateJoinCost(range, 1000, 1000, 1000, 1000) < nestedLoops);
+  }
+
+  // a two column input whose fields are named alias.c0 and alias.c1
+  private static OpIterator named(String alias, int[] data) {
+    TupleDesc td = Utility.getTupleDesc(2, alias + ".c");
+    List<Tuple> tuples = new ArrayList<>();
+    for (int i = 0; i < data.length; i += 2)
+      tuples.add(Utility.getTuple(new int[] {data[i], data[i + 1]}, 2));
+    return new TupleIterator(td, tuples);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
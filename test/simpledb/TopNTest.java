@@ -0,0 +1,145 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.TopN;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 2000;
+
+  // pairs (key, row number); keys repeat so stability can be checked
+  private static int[] data() {
+    Random r = new Random(11);
+    int[] data = new int[ROWS * 2];
+    for (int i = 0; i < ROWS; i++) {
+      data[2 * i] = r.nextInt(100);
+      data[2 * i + 1] = i;
+    }
+    return data;
+  }
+
+  private static List<int[]> drain(OpIterator op) throws Exception {
+    List<int[]> rows = new ArrayList<>();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      rows.add(new int[] {((IntField) t.getField(0)).getValue(),
+          ((IntField) t.getField(1)).getValue()});
+    }
+    return rows;
+  }
+
+  /**
+   * TopN returns the same tuples, in the same order, as the first n tuples
+   * of OrderBy, including the order of equal keys.
+   */
+  @Test public void matchesOrderBy() throws Exception {
+    for (boolean asc : new boolean[] {true, false}) {
+      for (int n : new int[] {1, 7, 100, ROWS, ROWS + 10}) {
+        OrderBy full = new OrderBy(0, asc, TestUtil.createTupleList(2, data()));
+        full.open();
+        List<int[]> expected = drain(full);
+        full.close();
+
+        TopN top = new TopN(0, asc, n, TestUtil.createTupleList(2, data()));
+        top.open();
+        List<int[]> actual = drain(top);
+        assertEquals(Math.min(n, ROWS), actual.size());
+        for (int i = 0; i < actual.size(); i++) {
+          assertEquals(expected.get(i)[0], actual.get(i)[0]);
+          assertEquals(expected.get(i)[1], actual.get(i)[1]);
+        }
+        top.rewind();
+        assertEquals(actual.size(), drain(top).size());
+        top.close();
+      }
+    }
+  }
+
+  /**
+   * A zero limit returns nothing.
+   */
+  @Test public void zeroLimit() throws Exception {
+    TopN top = new TopN(0, true, 0, TestUtil.createTupleList(2, data()));
+    top.open();
+    assertFalse(top.hasNext());
+    top.close();
+  }
+
+  /**
+   * A query with ORDER BY ... LIMIT is planned as a TopN.
+   */
+  @Test public void parsedLimit() throws Exception {
+    List<List<Integer>> tuples = new ArrayList<>();
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, 1000, null, tuples, "c");
+    Database.getCatalog().addTable(hf, "topn");
+    Map<String, TableStats> stats = new HashMap<>();
+    stats.put("topn", new TableStats(hf.getId(), 1));
+
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+    LogicalPlan lp = p.generateLogicalPlan(tid,
+        "SELECT * FROM topn t ORDER BY t.c0 DESC LIMIT 5;");
+    assertEquals(5, lp.getLimit());
+    OpIterator plan = lp.physicalPlan(tid, stats, false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+
+    tuples.sort((a, b) -> Integer.compare(b.get(0), a.get(0)));
+    plan.open();
+    for (int i = 0; i < 5; i++) {
+      assertEquals((int) tuples.get(i).get(0), ((IntField) plan.next().getField(0)).getValue());
+    }
+    assertFalse(plan.hasNext());
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+
+    lp = p.generateLogicalPlan(tid, "SELECT * FROM topn t ORDER BY t.c0;");
+    assertEquals(-1, lp.getLimit());
+    plan = lp.physicalPlan(tid, stats, false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof OrderBy);
+  }
+
+  /**
+   * Only the first statement is read from the input, and the LIMIT comes
+   * back with the statement instead of staying in the parser.
+   */
+  @Test public void readsOneStatement() throws Exception {
+    InputStream is = new ByteArrayInputStream(
+        "SELECT * FROM t WHERE t.s = 'a;b' LIMIT 3; SELECT * FROM u;".getBytes(StandardCharsets.UTF_8));
+    Parser.Statement st = Parser.striplimit(Parser.readstatement(is));
+    assertEquals("SELECT * FROM t WHERE t.s = 'a;b';", st.sql);
+    assertEquals(3, st.limit);
+    assertEquals(-1, Parser.striplimit("SELECT * FROM u;").limit);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
@@ -7,13 +7,30 @@ import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import simpledb.Parser;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
 import simpledb.execution.Aggregate;
 import simpledb.execution.Aggregator;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -121,6 +138,176 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    /**
+     * Aggregating page ranges on several threads and merging the partial
+     * aggregates gives the same groups, including AVG over merged sums and
+     * counts.
+     */
+    @Test public void testParallel() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 20 * ROWS, MAX_VALUE, null, createdTuples);
+        for (Aggregator.Op operation : new Aggregator.Op[] {Aggregator.Op.SUM, Aggregator.Op.MIN,
+                Aggregator.Op.MAX, Aggregator.Op.COUNT, Aggregator.Op.AVG}) {
+            for (int groupColumn : new int[] {0, Aggregator.NO_GROUPING}) {
+                TransactionId tid = new TransactionId();
+                Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, groupColumn, operation);
+                ag.setParallelism(4);
+                SystemTestUtil.matchTuples(ag, aggregate(createdTuples, operation, groupColumn));
+                assertTrue(ag.getPartialAggregates() > 1);
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        }
+    }
+
+    /**
+     * Filters between the aggregate and the scan are applied by each thread.
+     */
+    @Test public void testParallelFiltered() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 20 * ROWS, MAX_VALUE, null, createdTuples);
+        List<List<Integer>> filtered = new ArrayList<>();
+        for (List<Integer> t : createdTuples) {
+            if (t.get(2) < MAX_VALUE / 2) filtered.add(t);
+        }
+        TransactionId tid = new TransactionId();
+        Filter f = new Filter(new Predicate(2, Predicate.Op.LESS_THAN, new IntField(MAX_VALUE / 2)),
+                new SeqScan(tid, table.getId(), ""));
+        Aggregate ag = new Aggregate(f, 1, 0, Aggregator.Op.SUM);
+        ag.setParallelism(3);
+        SystemTestUtil.matchTuples(ag, aggregate(filtered, Aggregator.Op.SUM, 0));
+        assertTrue(ag.getPartialAggregates() > 1);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * With a small memory budget the groups of each thread's partial
+     * aggregate spill to disk, and merging the partials gives the same groups.
+     */
+    @Test public void testParallelSpill() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 20 * ROWS, 1 << 20, null, createdTuples);
+        TransactionId tid = new TransactionId();
+        Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0, Aggregator.Op.AVG);
+        ag.setParallelism(4);
+        ag.setMemoryBudget(4 * 1000);
+        SystemTestUtil.matchTuples(ag, aggregate(createdTuples, Aggregator.Op.AVG, 0));
+        assertTrue(ag.getSpilledPartitions() > 0);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Another transaction holding write locks on pages in the middle of the
+     * file makes the aggregate wait for it. When that writer then asks for a
+     * page the aggregate has read, the deadlock aborts the aggregate, the
+     * younger transaction, instead of leaving worker threads blocked.
+     */
+    @Test public void testParallelDeadlock() throws Exception {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 20 * ROWS, MAX_VALUE, null, createdTuples);
+        assertTrue(table.numPages() > 3);
+        TransactionId writer = new TransactionId();
+        for (int i = 1; i <= 3; i++)
+            Database.getBufferPool().getPage(writer, new HeapPageId(table.getId(), i), Permissions.READ_WRITE);
+
+        TransactionId tid = new TransactionId();
+        Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0, Aggregator.Op.SUM);
+        ag.setParallelism(4);
+        Throwable[] error = new Throwable[1];
+        Thread reader = new Thread(() -> {
+            try {
+                SystemTestUtil.matchTuples(ag, aggregate(createdTuples, Aggregator.Op.SUM, 0));
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        });
+        reader.start();
+        Thread.sleep(200);
+        assertTrue(reader.isAlive());
+
+        Thread write = new Thread(() -> {
+            try {
+                Database.getBufferPool().getPage(writer, new HeapPageId(table.getId(), 0), Permissions.READ_WRITE);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        write.start();
+        reader.join(10000);
+        assertFalse(reader.isAlive());
+        assertTrue(error[0] instanceof TransactionAbortedException);
+        Database.getBufferPool().transactionComplete(tid, false);
+        write.join(10000);
+        assertFalse(write.isAlive());
+        assertTrue(Database.getBufferPool().holdsLock(writer, new HeapPageId(table.getId(), 0)));
+        Database.getBufferPool().transactionComplete(writer);
+    }
+
+    /**
+     * When the child returns each group together the groups are aggregated
+     * one at a time as they arrive, from a sort or from a B+ tree scan.
+     */
+    @Test public void testStreaming() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, ROWS, MAX_VALUE, null, createdTuples);
+        List<List<Integer>> indexedTuples = new ArrayList<>();
+        BTreeFile index = BTreeUtility.createRandomBTreeFile(
+                COLUMNS, ROWS, MAX_VALUE, null, indexedTuples, 0);
+        for (Aggregator.Op operation : new Aggregator.Op[] {Aggregator.Op.SUM, Aggregator.Op.MIN,
+                Aggregator.Op.MAX, Aggregator.Op.COUNT, Aggregator.Op.AVG}) {
+            TransactionId tid = new TransactionId();
+            OpIterator sorted = new OrderBy(0, false, new SeqScan(tid, table.getId(), ""));
+            assertTrue(Aggregate.isGroupedOn(sorted, 0));
+            Aggregate ag = new Aggregate(sorted, 1, 0, operation);
+            ag.setStreaming(true);
+            SystemTestUtil.matchTuples(ag, aggregate(createdTuples, operation, 0));
+
+            SeqScan scan = new SeqScan(tid, index.getId(), "");
+            assertTrue(Aggregate.isGroupedOn(scan, 0));
+            assertFalse(Aggregate.isGroupedOn(scan, 1));
+            ag = new Aggregate(scan, 1, 0, operation);
+            ag.setStreaming(true);
+            SystemTestUtil.matchTuples(ag, aggregate(indexedTuples, operation, 0));
+            ag.open();
+            ag.next();
+            ag.rewind();
+            int groups = 0;
+            while (ag.hasNext()) {
+                ag.next();
+                groups++;
+            }
+            assertEquals(aggregate(indexedTuples, operation, 0).size(), groups);
+            ag.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * The planner aggregates a B+ tree keyed on the group by field as a stream.
+     */
+    @Test public void testPlannedStreaming() throws Exception {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        BTreeFile unnamed = BTreeUtility.createRandomBTreeFile(
+                COLUMNS, ROWS, MAX_VALUE, null, createdTuples, 0);
+        BTreeFile index = new BTreeFile(unnamed.getFile(), 0, Utility.getTupleDesc(COLUMNS, "c"));
+        Database.getCatalog().addTable(index, "aggstream");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("aggstream", new TableStats(index.getId(), 1000));
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT t.c0, SUM(t.c1) FROM aggstream t GROUP BY t.c0;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        Aggregate ag = (Aggregate) ((Operator) plan).getChildren()[0];
+        assertTrue(ag.isStreaming());
+        SystemTestUtil.matchTuples(plan, aggregate(createdTuples, Aggregator.Op.SUM, 0));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
@@ -2,6 +2,7 @@ package simpledb.systemtest;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CyclicBarrier;
 
 import org.junit.Test;
 
@@ -437,6 +438,65 @@ public class LogTest extends SimpleDbTestBase {
     }
 
 
+    @Test public void TestGroupCommit()
+            throws Exception {
+        setup();
+
+        // *** Test:
+        // a group commit is durable once commit() returns
+        Database.getLogFile().setGroupCommit(true);
+        doInsert(hf1, 1, 2);
+        Database.getLogFile().setGroupCommit(false);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+
+        // *** Test:
+        // concurrent commits share forces; each committer writes its
+        // own table so none of them waits for another's page lock
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(true);
+        log.setGroupCommitDelay(20000);
+        try {
+            final int threads = 8;
+            final CyclicBarrier barrier = new CyclicBarrier(threads);
+            final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+            Thread[] committers = new Thread[threads];
+            long commits = log.getCommits();
+            long forces = log.getForces();
+            for (int i = 0; i < threads; i++) {
+                File f = File.createTempFile("group", ".dat");
+                f.deleteOnExit();
+                final HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+                final int v = 100 + i;
+                committers[i] = new Thread(() -> {
+                    try {
+                        Transaction tx = new Transaction();
+                        tx.start();
+                        insertRow(hf, tx, v);
+                        barrier.await();
+                        tx.commit();
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                committers[i].start();
+            }
+            for (Thread committer : committers) {
+                committer.join();
+            }
+            assertEquals(Collections.emptyList(), errors);
+            assertEquals(threads, log.getCommits() - commits);
+            assertTrue(log.getForces() - forces < threads);
+        } finally {
+            log.setGroupCommit(false);
+        }
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);